@@ -3,10 +3,59 @@
 
 // Observer Pattern: Interface for notification observers
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 interface NotificationObserver {
     public void update(String message);
@@ -25,15 +74,260 @@ class UserNotificationObserver implements NotificationObserver {
     }
 }
 
+// Part of a user's profile or preferences that a single edit can change
+enum ProfileField {
+    NAME,
+    AGE,
+    GENDER,
+    BIO,
+    PHOTOS,
+    INTERESTS,
+    LOCATION,
+    PREFERENCES
+}
+
+// Observer Pattern: Interface for components that track profile changes (e.g. spatial indexes)
+interface ProfileObserver {
+    public void onLocationChanged(User user, Location oldLocation, Location newLocation);
+
+    // Gender or age changed
+    public default void onProfileChanged(User user) {
+    }
+
+    // Gender, age or distance preferences changed
+    public default void onPreferenceChanged(User user) {
+    }
+
+    // Any profile, preference or location change, after the specific callback if there is one
+    public default void onProfileEdited(User user, ProfileField field) {
+    }
+}
+
+enum NotificationType {
+    GENERAL("notification", "notifications"),
+    MATCH("match", "matches"),
+    MESSAGE("message", "messages");
+
+    private final String singular;
+    private final String plural;
+
+    NotificationType(String singular, String plural) {
+        this.singular = singular;
+        this.plural = plural;
+    }
+
+    public String describe(int count) {
+        return count + " new " + (count == 1 ? singular : plural);
+    }
+}
+
+class NotificationMetrics {
+    private long submitted;
+    private long delivered;
+    private long coalesced;
+    private long dropped;
+    private int queued;
+    private int maxQueued;
+
+    public NotificationMetrics(long submitted, long delivered, long coalesced, long dropped, int queued, int maxQueued) {
+        this.submitted = submitted;
+        this.delivered = delivered;
+        this.coalesced = coalesced;
+        this.dropped = dropped;
+        this.queued = queued;
+        this.maxQueued = maxQueued;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public long getDelivered() {
+        return delivered;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    @Override
+    public String toString() {
+        return "submitted=" + submitted + " delivered=" + delivered + " coalesced=" + coalesced
+            + " dropped=" + dropped + " queued=" + queued + " maxQueued=" + maxQueued;
+    }
+}
+
+// Delivers notifications off the request thread. Each user has a bounded mailbox; when it is
+// full the oldest pending notification is dropped. A mailbox is drained by one virtual thread
+// at a time, and bursts of the same type are coalesced into one "N new messages" update.
+// Mailboxes exist only while something is queued, and the user's observer is looked up when a
+// batch is delivered, so a replaced observer gets everything still pending.
+class AsyncNotificationDispatcher {
+    private static class Pending {
+        private final NotificationType type;
+        private final String message;
+
+        Pending(NotificationType type, String message) {
+            this.type = type;
+            this.message = message;
+        }
+    }
+
+    private static class Mailbox {
+        private final String userId;
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private boolean scheduled;
+        // Set once drained and unmapped; a submitter holding it must create a new one
+        private boolean closed;
+
+        Mailbox(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    private ExecutorService executor;
+    private Function<String, NotificationObserver> observers;
+    private int queueCapacity;
+    private ConcurrentHashMap<String, Mailbox> mailboxes;
+    private LongAdder submitted;
+    private LongAdder delivered;
+    private LongAdder coalesced;
+    private LongAdder dropped;
+    private AtomicInteger queued;
+    private AtomicInteger maxQueued;
+
+    public AsyncNotificationDispatcher(int queueCapacity, Function<String, NotificationObserver> observers){
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.observers = observers;
+        this.queueCapacity = queueCapacity;
+        this.mailboxes = new ConcurrentHashMap<>();
+        this.submitted = new LongAdder();
+        this.delivered = new LongAdder();
+        this.coalesced = new LongAdder();
+        this.dropped = new LongAdder();
+        this.queued = new AtomicInteger();
+        this.maxQueued = new AtomicInteger();
+    }
+
+    public void submit(String userId, NotificationType type, String message){
+        submitted.increment();
+        while (true) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(userId, Mailbox::new);
+            boolean schedule = false;
+            synchronized (mailbox) {
+                if (mailbox.closed) {
+                    continue;
+                }
+                if (mailbox.pending.size() == queueCapacity) {
+                    mailbox.pending.poll();
+                    dropped.increment();
+                } else {
+                    maxQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+                }
+                mailbox.pending.add(new Pending(type, message));
+                if (!mailbox.scheduled) {
+                    mailbox.scheduled = true;
+                    schedule = true;
+                }
+            }
+            if (schedule) {
+                try {
+                    executor.execute(() -> drain(mailbox));
+                } catch (RejectedExecutionException e) {
+                    // Shut down after this caller read the dispatcher; deliver on this thread
+                    drain(mailbox);
+                }
+            }
+            return;
+        }
+    }
+
+    public int getMailboxCount(){
+        return mailboxes.size();
+    }
+
+    public NotificationMetrics getMetrics(){
+        return new NotificationMetrics(submitted.sum(), delivered.sum(), coalesced.sum(), dropped.sum(), queued.get(), maxQueued.get());
+    }
+
+    // Stops accepting work and waits for queued notifications to be delivered
+    public void shutdown(long timeoutMillis){
+        executor.shutdown();
+        try {
+            executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain(Mailbox mailbox){
+        while (true) {
+            ArrayList<Pending> batch;
+            synchronized (mailbox) {
+                if (mailbox.pending.isEmpty()) {
+                    mailbox.scheduled = false;
+                    mailbox.closed = true;
+                    mailboxes.remove(mailbox.userId, mailbox);
+                    return;
+                }
+                batch = new ArrayList<>(mailbox.pending);
+                mailbox.pending.clear();
+            }
+            queued.addAndGet(-batch.size());
+            NotificationObserver observer = observers.apply(mailbox.userId);
+            if (observer == null) {
+                // Observer removed while these were queued
+                dropped.add(batch.size());
+                continue;
+            }
+            deliver(observer, batch);
+        }
+    }
+
+    private void deliver(NotificationObserver observer, ArrayList<Pending> batch){
+        EnumMap<NotificationType, ArrayList<String>> byType = new EnumMap<>(NotificationType.class);
+        for (Pending pending : batch) {
+            byType.computeIfAbsent(pending.type, k -> new ArrayList<>()).add(pending.message);
+        }
+        for (Map.Entry<NotificationType, ArrayList<String>> entry : byType.entrySet()) {
+            ArrayList<String> messages = entry.getValue();
+            if (messages.size() == 1) {
+                observer.update(messages.get(0));
+            } else {
+                observer.update("You have " + entry.getKey().describe(messages.size()) + ". Latest: " + messages.get(messages.size() - 1));
+                coalesced.add(messages.size() - 1);
+            }
+            delivered.increment();
+        }
+    }
+}
+
 // Observable for Observer Pattern
 class NotificationService {
-    private HashMap<String, NotificationObserver> observers;
+    private ConcurrentHashMap<String, NotificationObserver> observers;
+    private volatile AsyncNotificationDispatcher dispatcher;
+    private volatile AsyncNotificationDispatcher lastDispatcher;
     private static NotificationService instance;
     private NotificationService(){
-        observers = new HashMap<>();
+        observers = new ConcurrentHashMap<>();
     }
 
-    public static NotificationService getInstance(){
+    public static synchronized NotificationService getInstance(){
         if(instance == null){
             instance = new NotificationService();
         }
@@ -48,9 +342,42 @@ class NotificationService {
         observers.remove(userId);
     }
 
+    // Switches delivery to the async dispatcher; notifyUser no longer blocks on observers
+    public synchronized void enableAsyncDispatch(int perUserQueueCapacity){
+        if (dispatcher == null) {
+            dispatcher = new AsyncNotificationDispatcher(perUserQueueCapacity, observers::get);
+            lastDispatcher = dispatcher;
+        }
+    }
+
+    // Returns to synchronous delivery after flushing whatever is still queued
+    public synchronized void disableAsyncDispatch(long flushTimeoutMillis){
+        if (dispatcher != null) {
+            AsyncNotificationDispatcher current = dispatcher;
+            dispatcher = null;
+            current.shutdown(flushTimeoutMillis);
+        }
+    }
+
+    // Metrics of the active dispatcher, or of the last one after async dispatch is disabled
+    public NotificationMetrics getDispatchMetrics(){
+        AsyncNotificationDispatcher current = lastDispatcher;
+        return current == null ? new NotificationMetrics(0, 0, 0, 0, 0, 0) : current.getMetrics();
+    }
+
     public void notifyUser(String userId, String message) {
+        notifyUser(userId, NotificationType.GENERAL, message);
+    }
+
+    public void notifyUser(String userId, NotificationType type, String message) {
         NotificationObserver observer = observers.get(userId);
-        if (observer != null) {
+        if (observer == null) {
+            return;
+        }
+        AsyncNotificationDispatcher current = dispatcher;
+        if (current != null) {
+            current.submit(userId, type, message);
+        } else {
             observer.update(message);
         }
     }
@@ -74,15 +401,21 @@ enum Gender {
 class Location {
     private double latitude;
     private double longitude;
+    // Cached for GeoDistance so trig on the coordinates runs once per update, not per pair
+    private double latitudeRadians;
+    private double longitudeRadians;
+    private double cosLatitude;
+    // Profile whose current location this is, told about in-place moves so indexes can follow
+    private volatile UserProfile attachedTo;
 
     public Location(){
-        this.latitude = 0.0;
-        this.longitude = 0.0;
+        this(0.0, 0.0);
     }
 
     public Location(double latitude, double longitude) {
         this.latitude = latitude;
         this.longitude = longitude;
+        updateRadians();
     }
 
     public double getLatitude() {
@@ -93,26 +426,100 @@ class Location {
         return longitude;
     }
 
+    public double getLatitudeRadians() {
+        return latitudeRadians;
+    }
+
+    public double getLongitudeRadians() {
+        return longitudeRadians;
+    }
+
+    public double getCosLatitude() {
+        return cosLatitude;
+    }
+
     public void setLatitude(double latitude) {
+        Location previous = new Location(this.latitude, this.longitude);
         this.latitude = latitude;
+        updateRadians();
+        notifyMoved(previous);
     }
 
     public void setLongitude(double longitude) {
+        Location previous = new Location(this.latitude, this.longitude);
         this.longitude = longitude;
+        updateRadians();
+        notifyMoved(previous);
+    }
+
+    void attachTo(UserProfile profile) {
+        this.attachedTo = profile;
+    }
+
+    void detachFrom(UserProfile profile) {
+        if (this.attachedTo == profile) {
+            this.attachedTo = null;
+        }
     }
 
     // Calculate distance in Kilometers between two locations using haversine formula
     public double distanceInKm(Location other){
-        double earthRadius = 6371.0;
-        double dLat = (other.latitude - latitude) * Math.PI / 180.0;
-        double dLon = (other.longitude - longitude) * Math.PI / 180.0;
+        return GeoDistance.haversineKm(this, other);
+    }
 
-        double a = Math.sin(dLat/2) * Math.sin(dLat/2) + 
-            Math.cos(latitude * Math.PI) * Math.cos(other.latitude * Math.PI / 180) * 
-            Math.sin(dLon / 2) * Math.sin(dLon / 2);
-        
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
-        return earthRadius * c;
+    private void updateRadians() {
+        this.latitudeRadians = Math.toRadians(latitude);
+        this.longitudeRadians = Math.toRadians(longitude);
+        this.cosLatitude = Math.cos(latitudeRadians);
+    }
+
+    private void notifyMoved(Location previous) {
+        UserProfile profile = attachedTo;
+        if (profile != null) {
+            profile.onLocationMoved(previous, this);
+        }
+    }
+}
+
+class GeoDistance {
+    public static final double EARTH_RADIUS_KM = 6371.0;
+
+    public static double haversineKm(Location from, Location to){
+        double dLat = to.getLatitudeRadians() - from.getLatitudeRadians();
+        double dLon = to.getLongitudeRadians() - from.getLongitudeRadians();
+        double sinLat = Math.sin(dLat / 2);
+        double sinLon = Math.sin(dLon / 2);
+
+        double a = sinLat * sinLat + from.getCosLatitude() * to.getCosLatitude() * sinLon * sinLon;
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        return EARTH_RADIUS_KM * c;
+    }
+
+    // Exact distance, or POSITIVE_INFINITY when the pair is provably farther apart than maxKm.
+    // The rejection uses two trig-free lower bounds on the great-circle distance:
+    // R * |dLat| and (2 / PI) * R * |dLon| * min(cos lat1, cos lat2).
+    public static double distanceWithinKm(Location from, Location to, double maxKm){
+        double latGap = EARTH_RADIUS_KM * Math.abs(to.getLatitudeRadians() - from.getLatitudeRadians());
+        if (latGap > maxKm) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double dLon = Math.abs(to.getLongitudeRadians() - from.getLongitudeRadians());
+        if (dLon > Math.PI) {
+            dLon = 2 * Math.PI - dLon;
+        }
+        double lonGap = (2 / Math.PI) * EARTH_RADIUS_KM * dLon * Math.min(from.getCosLatitude(), to.getCosLatitude());
+        if (lonGap > maxKm) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        return haversineKm(from, to);
+    }
+
+    // Distance between two users, bounded by the smaller of their distance preferences
+    public static double pairDistanceKm(User user1, User user2){
+        double limit = Math.min(user1.getPreference().getMaxDistance(), user2.getPreference().getMaxDistance());
+        return distanceWithinKm(user1.getUserProfile().getLocation(), user2.getUserProfile().getLocation(), limit);
     }
 }
 
@@ -140,6 +547,49 @@ class Interest {
     }
 }
 
+// Interns interest names to dense integer ids so profiles can keep interests as bitsets
+class InterestDictionary {
+    private ConcurrentHashMap<String, Integer> ids;
+    private AtomicInteger nextId;
+    private static InterestDictionary instance;
+
+    private InterestDictionary(){
+        ids = new ConcurrentHashMap<>();
+        nextId = new AtomicInteger();
+    }
+
+    public static synchronized InterestDictionary getInstance(){
+        if (instance == null) {
+            instance = new InterestDictionary();
+        }
+        return instance;
+    }
+
+    public int idOf(String name){
+        return ids.computeIfAbsent(name, k -> nextId.getAndIncrement());
+    }
+
+    public int size(){
+        return nextId.get();
+    }
+
+    public static long[] withBit(long[] bits, int id){
+        int word = id >>> 6;
+        long[] result = bits.length > word ? bits : Arrays.copyOf(bits, word + 1);
+        result[word] |= 1L << id;
+        return result;
+    }
+
+    public static int countShared(long[] bits1, long[] bits2){
+        int words = Math.min(bits1.length, bits2.length);
+        int shared = 0;
+        for (int i = 0; i < words; i++) {
+            shared += Long.bitCount(bits1[i] & bits2[i]);
+        }
+        return shared;
+    }
+}
+
 // Preference Class
 class Preference {
     private ArrayList<Gender> interestedIn;
@@ -147,8 +597,14 @@ class Preference {
     private int maxAge;
     private double maxDistance;
     private ArrayList<String> interests;
+    private User owner;
 
     public Preference(){
+        this(null);
+    }
+
+    public Preference(User owner){
+        this.owner = owner;
         this.interestedIn = new ArrayList<>();
         this.minAge = 18;
         this.maxAge = 100;
@@ -158,27 +614,33 @@ class Preference {
 
     public void addGenderPreference(Gender gender){
         interestedIn.add(gender);
+        notifyOwner();
     }
 
     public void removeGenderPreference(Gender gender){
         interestedIn.remove(gender);
+        notifyOwner();
     }
 
     public void setAgeRange(int minAge, int maxAge){
         this.minAge = minAge;
         this.maxAge = maxAge;
+        notifyOwner();
     }
 
     public void setMaxDistance(double maxDistance){
         this.maxDistance = maxDistance;
+        notifyOwner();
     }
 
     public void addInterest(String interest){
         interests.add(interest);
+        notifyEdited();
     }
 
     public void removeInterest(String interest){
         interests.remove(interest);
+        notifyEdited();
     }
 
     public boolean isInterestedIn(Gender gender){
@@ -197,6 +659,10 @@ class Preference {
         return interests;
     }
 
+    public ArrayList<Gender> getInterestedIn(){
+        return interestedIn;
+    }
+
     public int getMinAge(){
         return minAge;
     }
@@ -208,6 +674,18 @@ class Preference {
     public double getMaxDistance(){
         return maxDistance;
     }
+
+    private void notifyOwner(){
+        if (owner != null) {
+            owner.notifyPreferenceChanged();
+        }
+    }
+
+    private void notifyEdited(){
+        if (owner != null) {
+            owner.notifyProfileEdited(ProfileField.PREFERENCES);
+        }
+    }
 }
 
 // ------------------------- Message System ---------------------------
@@ -215,11 +693,17 @@ class Message {
     private String senderId;
     private String content;
     private LocalDateTime time;
+    // Position in its chat's log, assigned on append; -1 until then
+    private long sequence = -1;
 
     public Message(String senderId, String content) {
+        this(senderId, content, LocalDateTime.now());
+    }
+
+    public Message(String senderId, String content, LocalDateTime time) {
         this.senderId = senderId;
         this.content = content;
-        this.time = LocalDateTime.now();
+        this.time = time;
     }
 
     public String getSenderId() {
@@ -233,142 +717,585 @@ class Message {
     public LocalDateTime getFormattedTime(){
         return this.time;
     }
-}
 
-class ChatRoom {
-    private String id;
-    private ArrayList<String> participantsId;
-    private ArrayList<Message> messages;
+    public long getSequence(){
+        return this.sequence;
+    }
 
-    public ChatRoom(String id, ArrayList<String> participantsId) {
-        this.id = id;
-        this.participantsId = participantsId;
-        this.messages = new ArrayList<>();
+    void assignSequence(long sequence){
+        this.sequence = sequence;
     }
+}
 
-    public String getId() {
-        return id;
+// Shared settings for chat message logs. Spilling is off until a directory is configured.
+class MessageLogConfig {
+    private int segmentSize;
+    private int hotSegments;
+    private Path spillDirectory;
+    private static MessageLogConfig instance;
+
+    private MessageLogConfig(){
+        segmentSize = 128;
+        hotSegments = 4;
+        spillDirectory = null;
     }
 
-    public void addMessage(String senderId, String content){
-        Message msg = new Message(senderId, content);
-        messages.add(msg);
+    public static synchronized MessageLogConfig getInstance(){
+        if (instance == null) {
+            instance = new MessageLogConfig();
+        }
+        return instance;
     }
 
-    public boolean hasParticipant(String userId){
-        return participantsId.contains(userId);
+    public synchronized void configure(int segmentSize, int hotSegments, Path spillDirectory){
+        if (segmentSize <= 0 || hotSegments <= 0) {
+            throw new IllegalArgumentException("Segment size and hot segment count must be positive");
+        }
+        this.segmentSize = segmentSize;
+        this.hotSegments = hotSegments;
+        this.spillDirectory = spillDirectory;
     }
 
-    public ArrayList<Message> getMessages(){
-        return messages;
+    public synchronized int getSegmentSize(){
+        return segmentSize;
     }
 
-    public ArrayList<String> getParticipantsId(){
-        return participantsId;
+    public synchronized int getHotSegments(){
+        return hotSegments;
     }
 
-    public void displayChat(){
-        System.out.println("======= Chat Room: " + id + " =======");
-        for(Message msg : messages){
-            System.out.println("[" + msg.getFormattedTime() + "] " + msg.getSenderId() + ": " + msg.getContent());
-        }
-        System.out.println("===================================");
+    public synchronized Path getSpillDirectory(){
+        return spillDirectory;
     }
 }
 
-// --------------------- Profile System -------------------------
+// A fixed-size run of messages, either on heap or spilled to a read-only mapped file region
+class MessageSegment {
+    private Message[] messages;
+    private int count;
+    private long baseSequence;
+    private MappedByteBuffer spilled;
+    private LocalDateTime firstTime;
+    private LocalDateTime lastTime;
+
+    public MessageSegment(int capacity, long baseSequence){
+        this.messages = new Message[capacity];
+        this.count = 0;
+        this.baseSequence = baseSequence;
+    }
 
-class UserProfile {
-    private String name;
-    private int age;
-    private Gender gender;
-    private String bio;
-    private ArrayList<String> photos;
-    private ArrayList<Interest> interests;
-    private Location location;
+    public boolean isFull(){
+        return messages != null && count == messages.length;
+    }
 
-    public UserProfile(){
-        this.name = "";
-        this.age = 0;
-        this.gender = Gender.OTHER;
-        this.bio = "";
-        this.photos = new ArrayList<>();
-        this.interests = new ArrayList<>();
-        this.location = new Location();
+    public boolean isSpilled(){
+        return spilled != null;
     }
 
-    public String getName(){
-        return this.name;
+    public int size(){
+        return count;
     }
 
-    public int getAge(){
-        return this.age;
+    public LocalDateTime getFirstTime(){
+        return firstTime;
     }
 
-    public Gender getGender(){
-        return this.gender;
+    public void append(Message message){
+        if (count == 0) {
+            firstTime = message.getFormattedTime();
+        }
+        lastTime = message.getFormattedTime();
+        message.assignSequence(baseSequence + count);
+        messages[count++] = message;
     }
 
-    public String getBio(){
-        return this.bio;
+    public Message[] read(){
+        if (!isSpilled()) {
+            return Arrays.copyOf(messages, count);
+        }
+        ByteBuffer buffer = spilled.duplicate();
+        Message[] result = new Message[count];
+        for (int i = 0; i < count; i++) {
+            long seconds = buffer.getLong();
+            int nanos = buffer.getInt();
+            String senderId = readString(buffer);
+            String content = readString(buffer);
+            result[i] = new Message(senderId, content, LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC));
+            result[i].assignSequence(baseSequence + i);
+        }
+        return result;
     }
 
-    public ArrayList<String> getPhotos(){
-        return this.photos;
+    // Lets the mapping be reclaimed once the log's spill file is closed
+    public void release(){
+        messages = null;
+        spilled = null;
+        count = 0;
     }
 
-    public ArrayList<Interest> getInterests(){
-        return this.interests;
+    // Appends the encoded messages to the channel and swaps the heap array for a mapping of them
+    public void spill(FileChannel channel) throws IOException {
+        ArrayList<byte[]> senders = new ArrayList<>(count);
+        ArrayList<byte[]> contents = new ArrayList<>(count);
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            senders.add(messages[i].getSenderId().getBytes(StandardCharsets.UTF_8));
+            contents.add(messages[i].getContent().getBytes(StandardCharsets.UTF_8));
+            length += Long.BYTES + Integer.BYTES * 3 + senders.get(i).length + contents.get(i).length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int i = 0; i < count; i++) {
+            LocalDateTime time = messages[i].getFormattedTime();
+            buffer.putLong(time.toEpochSecond(ZoneOffset.UTC));
+            buffer.putInt(time.getNano());
+            buffer.putInt(senders.get(i).length).put(senders.get(i));
+            buffer.putInt(contents.get(i).length).put(contents.get(i));
+        }
+        buffer.flip();
+
+        long offset = channel.size();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        spilled = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        messages = null;
     }
 
-    public Location getLocation(){
-        return this.location;
+    private static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
+}
 
-    public void setName(String name){
+// Append-only chat log split into fixed-size segments. Only the newest segments stay on heap;
+// older ones are spilled to a per-room file and read back through memory mapping. Every message
+// gets a sequence number on append, which is the stable cursor for paging back through a chat.
+class MessageLog {
+    private String name;
+    private int segmentSize;
+    private int hotSegments;
+    private Path spillDirectory;
+    private ArrayList<MessageSegment> segments;
+    private int heapSegments;
+    private int size;
+    private FileChannel spillChannel;
+    private Path spillFile;
+    private boolean closed;
+
+    public MessageLog(String name){
+        MessageLogConfig config = MessageLogConfig.getInstance();
         this.name = name;
+        this.segmentSize = config.getSegmentSize();
+        this.hotSegments = config.getHotSegments();
+        this.spillDirectory = config.getSpillDirectory();
+        this.segments = new ArrayList<>();
+        this.heapSegments = 0;
+        this.size = 0;
     }
 
-    public void setAge(int age){
-        this.age = age;
+    public synchronized void append(Message message){
+        if (closed) {
+            throw new IllegalStateException("Message log " + name + " is closed");
+        }
+        if (segments.isEmpty() || segments.get(segments.size() - 1).isFull()) {
+            segments.add(new MessageSegment(segmentSize, size));
+            heapSegments++;
+            spillColdSegments();
+        }
+        segments.get(segments.size() - 1).append(message);
+        size++;
     }
 
-    public void setGender(Gender gender){
-        this.gender = gender;
+    public synchronized int size(){
+        return size;
     }
 
-    public void setBio(String bio){
-        this.bio = bio;
+    // Up to limit messages with a sequence number below beforeSequence, oldest first. Pass
+    // Long.MAX_VALUE for the latest page, then the first message's sequence for the one before.
+    public synchronized ArrayList<Message> getMessages(long beforeSequence, int limit){
+        ArrayList<Message> page = new ArrayList<>();
+        long end = Math.min(beforeSequence, size);
+        long start = Math.max(0, end - Math.max(0, limit));
+        for (long segment = start / segmentSize; segment * segmentSize < end; segment++) {
+            Message[] messages = segments.get((int) segment).read();
+            long base = segment * segmentSize;
+            int from = (int) Math.max(0, start - base);
+            int to = (int) Math.min(messages.length, end - base);
+            for (int i = from; i < to; i++) {
+                page.add(messages[i]);
+            }
+        }
+        return page;
     }
 
-    public void addPhoto(String photo){
-        this.photos.add(photo);
+    // Up to limit messages sent strictly before the given time, oldest first. Use it to jump to
+    // a point in time; page on from there by sequence, since several messages can share a time.
+    public synchronized ArrayList<Message> getMessages(LocalDateTime beforeTime, int limit){
+        ArrayDeque<Message> page = new ArrayDeque<>();
+        for (int i = segments.size() - 1; i >= 0 && page.size() < limit; i--) {
+            MessageSegment segment = segments.get(i);
+            if (segment.size() == 0 || !segment.getFirstTime().isBefore(beforeTime)) {
+                continue;
+            }
+            Message[] messages = segment.read();
+            for (int j = messages.length - 1; j >= 0 && page.size() < limit; j--) {
+                if (messages[j].getFormattedTime().isBefore(beforeTime)) {
+                    page.addFirst(messages[j]);
+                }
+            }
+        }
+        return new ArrayList<>(page);
     }
 
-    public void removePhoto(String photo){
-        this.photos.remove(photo);
+    public synchronized void forEach(Consumer<Message> action){
+        for (MessageSegment segment : segments) {
+            for (Message message : segment.read()) {
+                action.accept(message);
+            }
+        }
     }
 
-    public void addInterest(Interest interest){
-        this.interests.add(interest);
+    // Releases the spill file and every segment; the log cannot be used afterwards
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (MessageSegment segment : segments) {
+            segment.release();
+        }
+        segments.clear();
+        heapSegments = 0;
+        size = 0;
+        if (spillChannel != null) {
+            spillChannel.close();
+            spillChannel = null;
+            Files.deleteIfExists(spillFile);
+        }
     }
 
-    public void removeInterest(Interest interest){
-        this.interests.remove(interest);
+    private void spillColdSegments(){
+        if (spillDirectory == null) {
+            return;
+        }
+        for (int i = 0; i < segments.size() - 1 && heapSegments > hotSegments; i++) {
+            MessageSegment segment = segments.get(i);
+            if (segment.isSpilled()) {
+                continue;
+            }
+            try {
+                segment.spill(spillChannel());
+                heapSegments--;
+            } catch (IOException e) {
+                // Keep the segment on heap; the log stays correct, just larger
+                System.out.println("Could not spill chat segment for " + name + ": " + e.getMessage());
+                return;
+            }
+        }
     }
 
-    public void setLocation(Location location){
-        this.location = location;
+    private FileChannel spillChannel() throws IOException {
+        if (spillChannel == null) {
+            Files.createDirectories(spillDirectory);
+            // Distinct room ids can sanitize to the same name, so every log gets its own new file
+            spillFile = Files.createTempFile(spillDirectory, "chat-" + name.replaceAll("[^A-Za-z0-9_-]", "_") + "-", ".log");
+            spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return spillChannel;
     }
+}
 
-    public void display() {
-        System.out.println("=========== Profile =============");
-        System.out.println("Name: " + name);
-        System.out.println("Age: " + age);
-        System.out.print("Gender: ");
-        switch (gender) {
-            case Gender.MALE:
-                System.out.println("Male");
+class ChatRoom {
+    private String id;
+    private ArrayList<String> participantsId;
+    private MessageLog messages;
+
+    public ChatRoom(String id, ArrayList<String> participantsId) {
+        this.id = id;
+        this.participantsId = participantsId;
+        this.messages = new MessageLog(id);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void addMessage(String senderId, String content){
+        Message msg = new Message(senderId, content);
+        messages.append(msg);
+    }
+
+    public void addMessage(Message message){
+        messages.append(message);
+    }
+
+    public boolean hasParticipant(String userId){
+        return participantsId.contains(userId);
+    }
+
+    // Materializes the whole conversation; prefer the paged overload for long chats
+    public ArrayList<Message> getMessages(){
+        ArrayList<Message> all = new ArrayList<>(messages.size());
+        messages.forEach(all::add);
+        return all;
+    }
+
+    public ArrayList<Message> getMessages(LocalDateTime beforeTime, int limit){
+        return messages.getMessages(beforeTime, limit);
+    }
+
+    public ArrayList<Message> getMessages(long beforeSequence, int limit){
+        return messages.getMessages(beforeSequence, limit);
+    }
+
+    // Frees the room's message log, including any spill file
+    public void close() throws IOException {
+        messages.close();
+    }
+
+    public int getMessageCount(){
+        return messages.size();
+    }
+
+    public ArrayList<String> getParticipantsId(){
+        return participantsId;
+    }
+
+    public void displayChat(){
+        System.out.println("======= Chat Room: " + id + " =======");
+        messages.forEach(msg ->
+            System.out.println("[" + msg.getFormattedTime() + "] " + msg.getSenderId() + ": " + msg.getContent()));
+        System.out.println("===================================");
+    }
+}
+
+// Chat rooms indexed by an unordered participant pair, plus the rooms each user is part of
+class ChatRoomIndex {
+    private ConcurrentHashMap<String, ChatRoom> roomsByPair;
+    private ConcurrentHashMap<String, Set<ChatRoom>> roomsByUser;
+
+    public ChatRoomIndex(){
+        roomsByPair = new ConcurrentHashMap<>();
+        roomsByUser = new ConcurrentHashMap<>();
+    }
+
+    // The first id is length-prefixed, so ids containing the separator cannot collide
+    public static String pairKey(String userId1, String userId2){
+        if (userId1.compareTo(userId2) > 0) {
+            return pairKey(userId2, userId1);
+        }
+        return userId1.length() + ":" + userId1 + "|" + userId2;
+    }
+
+    public void add(ChatRoom chatRoom){
+        ArrayList<String> participants = chatRoom.getParticipantsId();
+        if (participants.size() == 2) {
+            roomsByPair.put(pairKey(participants.get(0), participants.get(1)), chatRoom);
+        }
+        for(String userId : participants){
+            roomsByUser.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(chatRoom);
+        }
+    }
+
+    // Atomically registers a two-person room unless the pair already has one
+    public boolean addIfAbsent(ChatRoom chatRoom){
+        ArrayList<String> participants = chatRoom.getParticipantsId();
+        if (roomsByPair.putIfAbsent(pairKey(participants.get(0), participants.get(1)), chatRoom) != null) {
+            return false;
+        }
+        for(String userId : participants){
+            roomsByUser.computeIfAbsent(userId, k -> ConcurrentHashMap.newKeySet()).add(chatRoom);
+        }
+        return true;
+    }
+
+    public ChatRoom get(String userId1, String userId2){
+        return roomsByPair.get(pairKey(userId1, userId2));
+    }
+
+    public ArrayList<ChatRoom> getRoomsFor(String userId){
+        Set<ChatRoom> rooms = roomsByUser.get(userId);
+        return rooms == null ? new ArrayList<>() : new ArrayList<>(rooms);
+    }
+
+    public int size(){
+        return roomsByPair.size();
+    }
+
+    public ArrayList<ChatRoom> getAll(){
+        return new ArrayList<>(roomsByPair.values());
+    }
+
+    public boolean remove(ChatRoom chatRoom){
+        ArrayList<String> participants = chatRoom.getParticipantsId();
+        if (participants.size() == 2 && !roomsByPair.remove(pairKey(participants.get(0), participants.get(1)), chatRoom)) {
+            return false;
+        }
+        for(String userId : participants){
+            roomsByUser.computeIfPresent(userId, (k, rooms) -> {
+                rooms.remove(chatRoom);
+                return rooms.isEmpty() ? null : rooms;
+            });
+        }
+        return true;
+    }
+}
+
+// --------------------- Profile System -------------------------
+
+class UserProfile {
+    private String name;
+    private int age;
+    private Gender gender;
+    private String bio;
+    private ArrayList<String> photos;
+    private ArrayList<Interest> interests;
+    private Location location;
+    private User owner;
+    private volatile long[] interestBits;
+
+    public UserProfile(){
+        this(null);
+    }
+
+    public UserProfile(User owner){
+        this.owner = owner;
+        this.name = "";
+        this.age = 0;
+        this.gender = Gender.OTHER;
+        this.bio = "";
+        this.photos = new ArrayList<>();
+        this.interests = new ArrayList<>();
+        this.interestBits = new long[0];
+        this.location = new Location();
+        this.location.attachTo(this);
+    }
+
+    public String getName(){
+        return this.name;
+    }
+
+    public int getAge(){
+        return this.age;
+    }
+
+    public Gender getGender(){
+        return this.gender;
+    }
+
+    public String getBio(){
+        return this.bio;
+    }
+
+    public ArrayList<String> getPhotos(){
+        return this.photos;
+    }
+
+    public ArrayList<Interest> getInterests(){
+        return this.interests;
+    }
+
+    public Location getLocation(){
+        return this.location;
+    }
+
+    // Bitset over InterestDictionary ids, kept in sync by addInterest/removeInterest
+    public long[] getInterestBits(){
+        return this.interestBits;
+    }
+
+    public void setName(String name){
+        this.name = name;
+        notifyEdited(ProfileField.NAME);
+    }
+
+    public void setAge(int age){
+        this.age = age;
+        if (owner != null) {
+            owner.notifyProfileChanged(ProfileField.AGE);
+        }
+    }
+
+    public void setGender(Gender gender){
+        this.gender = gender;
+        if (owner != null) {
+            owner.notifyProfileChanged(ProfileField.GENDER);
+        }
+    }
+
+    public void setBio(String bio){
+        this.bio = bio;
+        notifyEdited(ProfileField.BIO);
+    }
+
+    public void addPhoto(String photo){
+        this.photos.add(photo);
+        notifyEdited(ProfileField.PHOTOS);
+    }
+
+    public void removePhoto(String photo){
+        this.photos.remove(photo);
+        notifyEdited(ProfileField.PHOTOS);
+    }
+
+    public void addInterest(Interest interest){
+        synchronized (this) {
+            this.interests.add(interest);
+            int id = InterestDictionary.getInstance().idOf(interest.getName());
+            this.interestBits = InterestDictionary.withBit(interestBits.clone(), id);
+        }
+        notifyEdited(ProfileField.INTERESTS);
+    }
+
+    public void removeInterest(Interest interest){
+        synchronized (this) {
+            if (!this.interests.remove(interest)) {
+                return;
+            }
+            // Another interest may share the name, so rebuild rather than clear the bit
+            long[] bits = new long[interestBits.length];
+            for (Interest remaining : interests) {
+                bits = InterestDictionary.withBit(bits, InterestDictionary.getInstance().idOf(remaining.getName()));
+            }
+            this.interestBits = bits;
+        }
+        notifyEdited(ProfileField.INTERESTS);
+    }
+
+    // A location object belongs to the last profile it was set on; moving it in place through
+    // its setters notifies observers the same way as setting a new one
+    public void setLocation(Location location){
+        Location oldLocation = this.location;
+        oldLocation.detachFrom(this);
+        this.location = location;
+        location.attachTo(this);
+        if (owner != null) {
+            owner.notifyLocationChanged(oldLocation, location);
+        }
+    }
+
+    void onLocationMoved(Location previous, Location current){
+        if (owner != null && this.location == current) {
+            owner.notifyLocationChanged(previous, current);
+        }
+    }
+
+    private void notifyEdited(ProfileField field){
+        if (owner != null) {
+            owner.notifyProfileEdited(field);
+        }
+    }
+
+    public void display() {
+        System.out.println("=========== Profile =============");
+        System.out.println("Name: " + name);
+        System.out.println("Age: " + age);
+        System.out.print("Gender: ");
+        switch (gender) {
+            case Gender.MALE:
+                System.out.println("Male");
                 break;
             case Gender.FEMALE:
                 System.out.println("Female");
@@ -408,19 +1335,161 @@ enum SwipeAction {
     RIGHT
 }
 
+// Maps user ids to dense integer ids so swipe history can be stored as primitive ints
+class UserIdDictionary {
+    private ConcurrentHashMap<String, Integer> ids;
+    private String[] names;
+    private static UserIdDictionary instance;
+
+    private UserIdDictionary(){
+        ids = new ConcurrentHashMap<>();
+        names = new String[1024];
+    }
+
+    public static synchronized UserIdDictionary getInstance(){
+        if (instance == null) {
+            instance = new UserIdDictionary();
+        }
+        return instance;
+    }
+
+    public int idOf(String userId){
+        Integer id = ids.get(userId);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(userId);
+            if (id == null) {
+                id = ids.size();
+                if (id == names.length) {
+                    names = Arrays.copyOf(names, names.length * 2);
+                }
+                names[id] = userId;
+                ids.put(userId, id);
+            }
+            return id;
+        }
+    }
+
+    // Returns -1 for ids that were never swiped on, without interning them
+    public int find(String userId){
+        Integer id = ids.get(userId);
+        return id == null ? -1 : id;
+    }
+
+    public synchronized String nameOf(int id){
+        return names[id];
+    }
+}
+
+// Sorted int array with binary search lookups; 4 bytes per element instead of a map entry
+class IntSortedSet {
+    private int[] values;
+    private int size;
+
+    public IntSortedSet(){
+        values = new int[4];
+        size = 0;
+    }
+
+    public boolean contains(int value){
+        return Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+
+    public boolean add(int value){
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size + (size >> 1) + 1);
+        }
+        System.arraycopy(values, index, values, index + 1, size - index);
+        values[index] = value;
+        size++;
+        return true;
+    }
+
+    public boolean remove(int value){
+        int index = Arrays.binarySearch(values, 0, size, value);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(values, index + 1, values, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public int[] toArray(){
+        return Arrays.copyOf(values, size);
+    }
+}
+
+class SwipeHistory {
+    private IntSortedSet likes;
+    private IntSortedSet dislikes;
+
+    public SwipeHistory(){
+        likes = new IntSortedSet();
+        dislikes = new IntSortedSet();
+    }
+
+    public synchronized void record(int otherId, SwipeAction action){
+        if (action == SwipeAction.RIGHT) {
+            dislikes.remove(otherId);
+            likes.add(otherId);
+        } else {
+            likes.remove(otherId);
+            dislikes.add(otherId);
+        }
+    }
+
+    public synchronized boolean hasLiked(int otherId){
+        return likes.contains(otherId);
+    }
+
+    public synchronized boolean hasDisliked(int otherId){
+        return dislikes.contains(otherId);
+    }
+
+    public synchronized boolean hasInteractedWith(int otherId){
+        return likes.contains(otherId) || dislikes.contains(otherId);
+    }
+
+    public synchronized int size(){
+        return likes.size() + dislikes.size();
+    }
+
+    public synchronized int[] getLikes(){
+        return likes.toArray();
+    }
+
+    public synchronized int[] getDislikes(){
+        return dislikes.toArray();
+    }
+}
+
 class User {
     private String id;
     private UserProfile userProfile;
     private Preference preference;
-    private HashMap<String, SwipeAction> swipeHistory;
+    private SwipeHistory swipeHistory;
     private NotificationObserver notificationObserver;
+    private CopyOnWriteArrayList<ProfileObserver> profileObservers;
 
     public User(String userId){
         id = userId;
-        userProfile = new UserProfile();
-        preference = new Preference();
+        profileObservers = new CopyOnWriteArrayList<>();
+        userProfile = new UserProfile(this);
+        preference = new Preference(this);
         notificationObserver = new UserNotificationObserver(userId);
-        swipeHistory = new HashMap<>();
+        swipeHistory = new SwipeHistory();
         NotificationService.getInstance().registerObserver(userId, notificationObserver);
     }
 
@@ -436,26 +1505,63 @@ class User {
         return preference;
     }
 
+    public SwipeHistory getSwipeHistory(){
+        return swipeHistory;
+    }
+
     public void swipe(String otherUserId, SwipeAction action){
-        swipeHistory.put(otherUserId, action);
+        swipeHistory.record(UserIdDictionary.getInstance().idOf(otherUserId), action);
     }
 
     public boolean hasLiked(String otherUserId){
-        if (swipeHistory.containsKey(otherUserId)) {
-            return swipeHistory.get(otherUserId) == SwipeAction.RIGHT;
-        }
-        return false;
+        int otherId = UserIdDictionary.getInstance().find(otherUserId);
+        return otherId >= 0 && swipeHistory.hasLiked(otherId);
     }
 
     public boolean hasDisliked(String otherUserId){
-        if (swipeHistory.containsKey(otherUserId)) {
-            return swipeHistory.get(otherUserId) == SwipeAction.LEFT;
-        }
-        return false;
+        int otherId = UserIdDictionary.getInstance().find(otherUserId);
+        return otherId >= 0 && swipeHistory.hasDisliked(otherId);
     }
 
     public boolean hasInteractedWith(String otherUserId){
-        return swipeHistory.containsKey(otherUserId);
+        int otherId = UserIdDictionary.getInstance().find(otherUserId);
+        return otherId >= 0 && swipeHistory.hasInteractedWith(otherId);
+    }
+
+    public void addProfileObserver(ProfileObserver observer){
+        profileObservers.add(observer);
+    }
+
+    public void removeProfileObserver(ProfileObserver observer){
+        profileObservers.remove(observer);
+    }
+
+    public void notifyLocationChanged(Location oldLocation, Location newLocation){
+        for(ProfileObserver observer : profileObservers){
+            observer.onLocationChanged(this, oldLocation, newLocation);
+        }
+        notifyProfileEdited(ProfileField.LOCATION);
+    }
+
+    // field is AGE or GENDER
+    public void notifyProfileChanged(ProfileField field){
+        for(ProfileObserver observer : profileObservers){
+            observer.onProfileChanged(this);
+        }
+        notifyProfileEdited(field);
+    }
+
+    public void notifyPreferenceChanged(){
+        for(ProfileObserver observer : profileObservers){
+            observer.onPreferenceChanged(this);
+        }
+        notifyProfileEdited(ProfileField.PREFERENCES);
+    }
+
+    public void notifyProfileEdited(ProfileField field){
+        for(ProfileObserver observer : profileObservers){
+            observer.onProfileEdited(this, field);
+        }
     }
 
     public void display(){
@@ -467,14 +1573,21 @@ class User {
 
 interface LocationStrategy {
     ArrayList<User> findNearbyUsers(Location location, double maxDistance, ArrayList<User> allUsers);
-}
+
+    // Hooks for strategies that keep their own index of users
+    default void onUserAdded(User user) {
+    }
+
+    default void onUserRemoved(User user) {
+    }
+}
 
 class BasicLocationStrategy implements LocationStrategy{
     @Override
     public ArrayList<User> findNearbyUsers(Location location, double maxDistance, ArrayList<User> allUsers) {
         ArrayList<User> nearyByUser = new ArrayList<>();
         for (User user : allUsers) {
-            if (location.distanceInKm(user.getUserProfile().getLocation()) <= maxDistance) {
+            if (GeoDistance.distanceWithinKm(location, user.getUserProfile().getLocation(), maxDistance) <= maxDistance) {
                 nearyByUser.add(user);
             }
         }
@@ -482,27 +1595,248 @@ class BasicLocationStrategy implements LocationStrategy{
     }
 }
 
+// Uniform lat/lon grid index. Users are bucketed into cells of roughly cellSizeKm and re-bucketed
+// on every location change (UserProfile.setLocation or an in-place Location move), so a query
+// only runs haversine against users in the cells that intersect the search radius. Behind a
+// LocationService the user set comes from onUserAdded/onUserRemoved; used on its own, the index
+// follows whichever user list it is queried with.
+class GridLocationStrategy implements LocationStrategy, ProfileObserver {
+    private static final double KM_PER_DEGREE = GeoDistance.EARTH_RADIUS_KM * Math.PI / 180.0;
+
+    private double cellSizeDeg;
+    private int lonCells;
+    private ConcurrentHashMap<Long, Set<User>> cells;
+    private ConcurrentHashMap<User, Long> userCells;
+    private volatile boolean managed;
+    private volatile ArrayList<User> syncedWith;
+
+    public GridLocationStrategy(){
+        this(10.0);
+    }
+
+    public GridLocationStrategy(double cellSizeKm){
+        if (cellSizeKm <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive");
+        }
+        this.cellSizeDeg = cellSizeKm / KM_PER_DEGREE;
+        this.lonCells = (int) Math.ceil(360.0 / cellSizeDeg);
+        this.cells = new ConcurrentHashMap<>();
+        this.userCells = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public ArrayList<User> findNearbyUsers(Location location, double maxDistance, ArrayList<User> allUsers) {
+        syncWith(allUsers);
+
+        double dLat = maxDistance / KM_PER_DEGREE;
+        double minLat = Math.max(-90.0, location.getLatitude() - dLat);
+        double maxLat = Math.min(90.0, location.getLatitude() + dLat);
+
+        // Widen the longitude span by the latitude in range that is closest to a pole
+        double poleLat = Math.max(Math.abs(minLat), Math.abs(maxLat));
+        double cosLat = Math.cos(Math.toRadians(poleLat));
+        double dLon = cosLat > 1e-6 ? dLat / cosLat : 360.0;
+
+        int fromLat = latIndex(minLat);
+        int toLat = latIndex(maxLat);
+        int fromLon = (int) Math.floor((location.getLongitude() - dLon + 180.0) / cellSizeDeg);
+        int lonSpan = Math.min(lonCells, (int) Math.floor((location.getLongitude() + dLon + 180.0) / cellSizeDeg) - fromLon + 1);
+
+        ArrayList<User> nearbyUsers = new ArrayList<>();
+        long cellsToVisit = (long) (toLat - fromLat + 1) * lonSpan;
+        if (cellsToVisit > cells.size()) {
+            // Radius covers more cells than are populated; walking the populated ones is cheaper
+            for (Set<User> cell : cells.values()) {
+                collectNearby(cell, location, maxDistance, nearbyUsers);
+            }
+            return nearbyUsers;
+        }
+
+        for (int lat = fromLat; lat <= toLat; lat++) {
+            for (int i = 0; i < lonSpan; i++) {
+                int lon = Math.floorMod(fromLon + i, lonCells);
+                Set<User> cell = cells.get(cellKey(lat, lon));
+                if (cell != null) {
+                    collectNearby(cell, location, maxDistance, nearbyUsers);
+                }
+            }
+        }
+        return nearbyUsers;
+    }
+
+    // Synchronized per user so concurrent moves of one user cannot leave it in two cells
+    @Override
+    public void onLocationChanged(User user, Location oldLocation, Location newLocation) {
+        synchronized (user) {
+            Long oldCell = userCells.get(user);
+            if (oldCell == null) {
+                return;
+            }
+            long newCell = cellKeyOf(newLocation);
+            if (oldCell == newCell) {
+                return;
+            }
+            removeFromCell(oldCell, user);
+            addToCell(newCell, user);
+            userCells.put(user, newCell);
+        }
+    }
+
+    @Override
+    public void onUserAdded(User user) {
+        managed = true;
+        addUser(user);
+    }
+
+    @Override
+    public void onUserRemoved(User user) {
+        managed = true;
+        removeUser(user);
+    }
+
+    public void addUser(User user){
+        synchronized (user) {
+            long cell = cellKeyOf(user.getUserProfile().getLocation());
+            if (userCells.putIfAbsent(user, cell) == null) {
+                addToCell(cell, user);
+                user.addProfileObserver(this);
+            }
+        }
+    }
+
+    public void removeUser(User user){
+        synchronized (user) {
+            Long cell = userCells.remove(user);
+            if (cell != null) {
+                removeFromCell(cell, user);
+                user.removeProfileObserver(this);
+            }
+        }
+    }
+
+    public int size(){
+        return userCells.size();
+    }
+
+    // Only for standalone use: when queried with a different list than last time, index exactly
+    // the users in it. A managed index is told about every user and ignores the list.
+    private void syncWith(ArrayList<User> allUsers){
+        if (managed || allUsers == syncedWith) {
+            return;
+        }
+        synchronized (this) {
+            if (allUsers == syncedWith) {
+                return;
+            }
+            Set<User> listed = new HashSet<>(allUsers);
+            for (User user : userCells.keySet()) {
+                if (!listed.contains(user)) {
+                    removeUser(user);
+                }
+            }
+            for (User user : allUsers) {
+                addUser(user);
+            }
+            syncedWith = allUsers;
+        }
+    }
+
+    private void collectNearby(Set<User> cell, Location location, double maxDistance, ArrayList<User> nearbyUsers){
+        for (User user : cell) {
+            if (GeoDistance.distanceWithinKm(location, user.getUserProfile().getLocation(), maxDistance) <= maxDistance) {
+                nearbyUsers.add(user);
+            }
+        }
+    }
+
+    private void addToCell(long cellKey, User user){
+        cells.compute(cellKey, (k, cell) -> {
+            if (cell == null) {
+                cell = ConcurrentHashMap.newKeySet();
+            }
+            cell.add(user);
+            return cell;
+        });
+    }
+
+    private void removeFromCell(long cellKey, User user){
+        cells.computeIfPresent(cellKey, (k, cell) -> {
+            cell.remove(user);
+            return cell.isEmpty() ? null : cell;
+        });
+    }
+
+    private long cellKeyOf(Location location){
+        int lon = Math.floorMod((int) Math.floor((location.getLongitude() + 180.0) / cellSizeDeg), lonCells);
+        return cellKey(latIndex(location.getLatitude()), lon);
+    }
+
+    private int latIndex(double latitude){
+        return (int) Math.floor((latitude + 90.0) / cellSizeDeg);
+    }
+
+    private long cellKey(int lat, int lon){
+        return (long) lat * lonCells + lon;
+    }
+}
+
 class LocationService {
-    private LocationStrategy strategy;
+    private volatile LocationStrategy strategy;
+    private TinderMetrics metrics;
+    // Users added through this service, so a newly selected strategy can be seeded with them
+    private Set<User> users;
     private static LocationService instance;
 
-    private LocationService(){
-        strategy = new BasicLocationStrategy();
+    private LocationService(LocationStrategy strategy){
+        this.strategy = strategy;
+        this.metrics = TinderMetrics.getInstance();
+        this.users = ConcurrentHashMap.newKeySet();
     }
 
-    public static LocationService getInstance(){
+    public static synchronized LocationService getInstance(){
         if (instance == null) {
-            instance = new LocationService();
+            instance = new LocationService(new BasicLocationStrategy());
         }
         return instance;
     }
 
-    public void setStrategy(LocationStrategy strategy){
+    // Separate service for a Tinder shard, so its spatial index only holds that shard's users
+    public static LocationService createIsolated(LocationStrategy strategy){
+        return new LocationService(strategy);
+    }
+
+    // The outgoing strategy is told every user left, so an index drops its cells and observers
+    public synchronized void setStrategy(LocationStrategy strategy){
+        LocationStrategy previous = this.strategy;
+        if (strategy == previous) {
+            return;
+        }
+        for (User user : users) {
+            strategy.onUserAdded(user);
+        }
         this.strategy = strategy;
+        for (User user : users) {
+            previous.onUserRemoved(user);
+        }
+    }
+
+    public synchronized void addUser(User user){
+        users.add(user);
+        strategy.onUserAdded(user);
+    }
+
+    public synchronized void removeUser(User user){
+        users.remove(user);
+        strategy.onUserRemoved(user);
     }
 
     public ArrayList<User> findNearbyUsers(Location location, double maxDistance, ArrayList<User> allUsers){
-        return strategy.findNearbyUsers(location, maxDistance, allUsers);
+        long start = metrics.start();
+        try {
+            return strategy.findNearbyUsers(location, maxDistance, allUsers);
+        } finally {
+            metrics.stop(TinderOperation.LOCATION_QUERY, start);
+        }
     }
 }
 
@@ -513,13 +1847,18 @@ enum MatcherType{
 }
 
 interface Matcher{
-    public double CalculateMatchScore(User user1, User user2);
+    // distanceKm comes from GeoDistance.pairDistanceKm, or is NaN when not computed yet
+    public double CalculateMatchScore(User user1, User user2, double distanceKm);
+
+    public default double CalculateMatchScore(User user1, User user2){
+        return CalculateMatchScore(user1, user2, Double.NaN);
+    }
 }
 
 class BasicMatcher implements Matcher {
 
     @Override
-    public double CalculateMatchScore(User user1, User user2) {
+    public double CalculateMatchScore(User user1, User user2, double distanceKm) {
         boolean user1LikesUser2Gender = user1.getPreference().isInterestedIn(user2.getUserProfile().getGender());
         boolean user2LikesUser1Gender = user2.getPreference().isInterestedIn(user1.getUserProfile().getGender());
 
@@ -534,7 +1873,7 @@ class BasicMatcher implements Matcher {
             return 0.0;
         }
 
-        double distance = user1.getUserProfile().getLocation().distanceInKm(user2.getUserProfile().getLocation());
+        double distance = Double.isNaN(distanceKm) ? GeoDistance.pairDistanceKm(user1, user2) : distanceKm;
         boolean user1LikesUser2Distance = user1.getPreference().isDistanceAcceptable(distance);
         boolean user2LikesUser1Distance = user2.getPreference().isDistanceAcceptable(distance);
 
@@ -547,133 +1886,1918 @@ class BasicMatcher implements Matcher {
 }
 
 class InterestsBasedMatcher implements Matcher {
+    private final Matcher basicMatcher = new BasicMatcher();
+
+    @Override
+    public double CalculateMatchScore(User user1, User user2, double distanceKm) {
+        double baseScore = basicMatcher.CalculateMatchScore(user1, user2, distanceKm);
+
+        if (baseScore == 0.0) {
+            return 0.0;
+        }
+
+        int sharedInterests = InterestDictionary.countShared(user1.getUserProfile().getInterestBits(), user2.getUserProfile().getInterestBits());
+
+        double maxInterests = Math.max(user1.getUserProfile().getInterests().size(), user2.getUserProfile().getInterests().size());
+        double interestScore = maxInterests > 0 ? 0.5 * (sharedInterests / maxInterests): 0.0;
+
+        return baseScore + interestScore;
+    }
+}
+
+class LocationBasedMatcher implements Matcher {
+    private final Matcher interestsMatcher = new InterestsBasedMatcher();
 
     @Override
-    public double CalculateMatchScore(User user1, User user2) {
-        BasicMatcher basicMatcher = new BasicMatcher();
-        double baseScore = basicMatcher.CalculateMatchScore(user1, user2);
+    public double CalculateMatchScore(User user1, User user2, double distanceKm) {
+        // Resolve the distance first: out-of-range pairs are rejected before any other check
+        double distance = Double.isNaN(distanceKm) ? GeoDistance.pairDistanceKm(user1, user2) : distanceKm;
+        if (distance == Double.POSITIVE_INFINITY) {
+            return 0.0;
+        }
+
+        double baseScore = interestsMatcher.CalculateMatchScore(user1, user2, distance);
 
         if (baseScore == 0.0) {
             return 0.0;
         }
 
-        ArrayList<String> user1InterestNames = new ArrayList<>();
-        for(Interest interest: user1.getUserProfile().getInterests()){
-            user1InterestNames.add(interest.getName());
+        double maxDistance = Math.min(user1.getPreference().getMaxDistance(), user2.getPreference().getMaxDistance());
+
+        double proximityScore = maxDistance > 0 ? 0.2 * (1.0 - (distance / maxDistance)): 0.0;
+
+        return baseScore + proximityScore;
+    }
+}
+
+// Matchers are stateless, so the factory hands out shared instances
+class MatcherFactory {
+    private static final Matcher BASIC_MATCHER = new BasicMatcher();
+    private static final Matcher INTERESTS_MATCHER = new InterestsBasedMatcher();
+    private static final Matcher LOCATION_MATCHER = new LocationBasedMatcher();
+
+    public static Matcher createMatcher(MatcherType type){
+        switch (type) {
+            case BASIC:
+                return BASIC_MATCHER;
+            case INTERESTS_BASED:
+                return INTERESTS_MATCHER;
+            case LOCATION_BASED:
+                return LOCATION_MATCHER;
+            default:
+                return null;
+        }
+    }
+}
+
+class ScoredUser {
+    private User user;
+    private double score;
+
+    public ScoredUser(User user, double score) {
+        this.user = user;
+        this.score = score;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public double getScore() {
+        return score;
+    }
+}
+
+// Scores one user against a batch of candidates and keeps the K best. Large batches are
+// split with fork/join and every leaf keeps its own bounded min-heap, merged on the way up.
+class MatchScoringEngine {
+    private static final int SEQUENTIAL_THRESHOLD = 512;
+    private static final Comparator<ScoredUser> BY_SCORE = Comparator.comparingDouble(ScoredUser::getScore);
+
+    private ForkJoinPool pool;
+
+    public MatchScoringEngine(){
+        this(ForkJoinPool.commonPool());
+    }
+
+    public MatchScoringEngine(ForkJoinPool pool){
+        this.pool = pool;
+    }
+
+    // Returns up to k candidates with a positive score, best first
+    public ArrayList<ScoredUser> rankTopK(Matcher matcher, User user, User[] candidates, int k){
+        if (k <= 0 || candidates.length == 0) {
+            return new ArrayList<>();
+        }
+
+        PriorityQueue<ScoredUser> best;
+        if (candidates.length <= SEQUENTIAL_THRESHOLD) {
+            best = scoreRange(matcher, user, candidates, 0, candidates.length, k);
+        } else {
+            best = pool.invoke(new ScoreTask(matcher, user, candidates, 0, candidates.length, k));
         }
 
-        int sharedInterests = 0;
-        for(Interest interest: user2.getUserProfile().getInterests()){
-            if (user1InterestNames.contains(interest.getName())) {
-                sharedInterests++;
+        ArrayList<ScoredUser> ranked = new ArrayList<>(best);
+        ranked.sort(BY_SCORE.reversed());
+        return ranked;
+    }
+
+    private static PriorityQueue<ScoredUser> scoreRange(Matcher matcher, User user, User[] candidates, int from, int to, int k){
+        PriorityQueue<ScoredUser> best = new PriorityQueue<>(Math.min(k, to - from) + 1, BY_SCORE);
+        for (int i = from; i < to; i++) {
+            double score = matcher.CalculateMatchScore(candidates[i], user);
+            if (score > 0) {
+                offer(best, new ScoredUser(candidates[i], score), k);
             }
         }
+        return best;
+    }
 
-        double maxInterests = Math.max(user1.getUserProfile().getInterests().size(), user2.getUserProfile().getInterests().size());
-        double interestScore = maxInterests > 0 ? 0.5 * (sharedInterests / maxInterests): 0.0;
+    private static void offer(PriorityQueue<ScoredUser> best, ScoredUser scored, int k){
+        if (best.size() < k) {
+            best.add(scored);
+        } else if (best.peek().getScore() < scored.getScore()) {
+            best.poll();
+            best.add(scored);
+        }
+    }
 
-        return baseScore + interestScore;
+    // Never serialized; fork/join tasks are only Serializable through ForkJoinTask
+    private static class ScoreTask extends RecursiveTask<PriorityQueue<ScoredUser>> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Matcher matcher;
+        private final transient User user;
+        private final transient User[] candidates;
+        private final int from;
+        private final int to;
+        private final int k;
+
+        ScoreTask(Matcher matcher, User user, User[] candidates, int from, int to, int k) {
+            this.matcher = matcher;
+            this.user = user;
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+            this.k = k;
+        }
+
+        @Override
+        protected PriorityQueue<ScoredUser> compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                return scoreRange(matcher, user, candidates, from, to, k);
+            }
+            int mid = (from + to) >>> 1;
+            ScoreTask left = new ScoreTask(matcher, user, candidates, from, mid, k);
+            left.fork();
+            PriorityQueue<ScoredUser> right = new ScoreTask(matcher, user, candidates, mid, to, k).compute();
+            PriorityQueue<ScoredUser> merged = left.join();
+
+            for (ScoredUser scored : right) {
+                offer(merged, scored, k);
+            }
+            return merged;
+        }
+    }
+}
+
+// ---------------- Location Ingest ------------------------
+
+class LocationUpdate {
+    private String userId;
+    private double latitude;
+    private double longitude;
+
+    public LocationUpdate(String userId, double latitude, double longitude) {
+        this.userId = userId;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+}
+
+// Buffers high-rate device location updates and applies them off the request thread. Updates
+// closer than the movement threshold to the user's applied location are dropped as GPS jitter,
+// and only the latest pending location per user survives until the next flush, so the spatial
+// and feed indexes see at most one move per user per flush interval.
+class LocationIngestPipeline {
+    private Function<String, User> users;
+    private double thresholdKm;
+    private ConcurrentHashMap<String, Location> pending;
+    private ScheduledExecutorService flusher;
+    private TinderMetrics metrics;
+    private LongAdder submitted;
+    private LongAdder belowThreshold;
+    private LongAdder coalesced;
+    private LongAdder unknownUsers;
+    private LongAdder applied;
+
+    public LocationIngestPipeline(Function<String, User> users, double thresholdMeters, long flushIntervalMillis) {
+        if (thresholdMeters < 0 || flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Threshold must be non-negative and flush interval positive");
+        }
+        this.users = users;
+        this.thresholdKm = thresholdMeters / 1000.0;
+        this.pending = new ConcurrentHashMap<>();
+        this.metrics = TinderMetrics.getInstance();
+        this.submitted = new LongAdder();
+        this.belowThreshold = new LongAdder();
+        this.coalesced = new LongAdder();
+        this.unknownUsers = new LongAdder();
+        this.applied = new LongAdder();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "location-ingest-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::scheduledFlush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void submit(String userId, double latitude, double longitude) {
+        submitted.increment();
+        User user = users.apply(userId);
+        if (user == null) {
+            unknownUsers.increment();
+            return;
+        }
+        Location location = new Location(latitude, longitude);
+        if (!hasMoved(user, location)) {
+            // Back within the threshold of where we last placed them, so any pending move is stale
+            belowThreshold.increment();
+            pending.remove(userId);
+            return;
+        }
+        if (pending.put(userId, location) != null) {
+            coalesced.increment();
+        }
+    }
+
+    public void submitAll(Collection<LocationUpdate> updates) {
+        for (LocationUpdate update : updates) {
+            submit(update.getUserId(), update.getLatitude(), update.getLongitude());
+        }
+    }
+
+    // Applies every pending update now; returns how many users were moved
+    public synchronized int flush() {
+        long start = metrics.start();
+        ArrayList<Map.Entry<User, Location>> batch = new ArrayList<>(pending.size());
+        for (String userId : pending.keySet()) {
+            Location location = pending.remove(userId);
+            User user = location == null ? null : users.apply(userId);
+            if (user != null && hasMoved(user, location)) {
+                batch.add(Map.entry(user, location));
+            }
+        }
+        for (Map.Entry<User, Location> move : batch) {
+            move.getKey().getUserProfile().setLocation(move.getValue());
+        }
+        applied.add(batch.size());
+        metrics.add(TinderCounter.LOCATION_UPDATES, batch.size());
+        metrics.stop(TinderOperation.LOCATION_FLUSH, start);
+        return batch.size();
+    }
+
+    // Stops the background flusher after applying whatever is still pending
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getBelowThreshold() {
+        return belowThreshold.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getUnknownUsers() {
+        return unknownUsers.sum();
+    }
+
+    public long getApplied() {
+        return applied.sum();
+    }
+
+    private boolean hasMoved(User user, Location location) {
+        Location current = user.getUserProfile().getLocation();
+        return GeoDistance.distanceWithinKm(current, location, thresholdKm) >= thresholdKm;
+    }
+
+    private void scheduledFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // A failing observer must not cancel the periodic flush
+            System.out.println("Location flush failed: " + e.getMessage());
+        }
+    }
+}
+
+// ---------------- User Registry ------------------------
+
+// Hash-indexed registry safe for concurrent createUser/lookup. Discovery iterates an
+// immutable snapshot that is rebuilt lazily only after the user set has changed.
+class UserRegistry {
+    private ConcurrentHashMap<String, User> users;
+    private AtomicLong version;
+    private volatile Snapshot snapshot;
+
+    private static class Snapshot {
+        private final long version;
+        private final ArrayList<User> users;
+
+        Snapshot(long version, ArrayList<User> users) {
+            this.version = version;
+            this.users = users;
+        }
+    }
+
+    public UserRegistry(){
+        users = new ConcurrentHashMap<>();
+        version = new AtomicLong();
+        snapshot = new Snapshot(0, new ArrayList<>());
+    }
+
+    // The new user, or null if the id is already taken; exactly one of concurrent callers wins
+    public User createIfAbsent(String userId){
+        boolean[] created = new boolean[1];
+        User user = users.computeIfAbsent(userId, id -> {
+            created[0] = true;
+            return new User(id);
+        });
+        if (!created[0]) {
+            return null;
+        }
+        version.incrementAndGet();
+        return user;
+    }
+
+    public User get(String userId){
+        return users.get(userId);
+    }
+
+    // Registers an existing user object, e.g. one migrating in from another shard
+    public boolean add(User user){
+        if (users.putIfAbsent(user.getId(), user) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    public User remove(String userId){
+        User user = users.remove(userId);
+        if (user != null) {
+            version.incrementAndGet();
+        }
+        return user;
+    }
+
+    public int size(){
+        return users.size();
+    }
+
+    // Returned list is shared between callers and must not be modified
+    public ArrayList<User> snapshot(){
+        Snapshot current = snapshot;
+        if (current.version != version.get()) {
+            synchronized (this) {
+                long latest = version.get();
+                current = snapshot;
+                if (current.version != latest) {
+                    current = new Snapshot(latest, new ArrayList<>(users.values()));
+                    snapshot = current;
+                }
+            }
+        }
+        return current.users;
+    }
+}
+
+// ---------------- Discovery Index ------------------------
+
+// Buckets users by (gender, age band) and filters discovery candidates against the buckets a
+// searcher's preferences allow. Discovery runs the spatial query first and filters its result,
+// so per-request work follows the number of nearby users rather than the population. Bucket
+// sizes follow profile changes through ProfileObserver, which lets a search whose allowed buckets
+// are all empty skip the spatial query. Preferences are read at query time.
+class DiscoveryIndex implements ProfileObserver {
+    private static final int AGE_BAND_YEARS = 5;
+    private static final int MAX_AGE = 120;
+    private static final int AGE_BANDS = MAX_AGE / AGE_BAND_YEARS + 1;
+
+    private AtomicIntegerArray bucketSizes;
+    private ConcurrentHashMap<User, Integer> userBuckets;
+
+    public DiscoveryIndex(){
+        bucketSizes = new AtomicIntegerArray(Gender.values().length * AGE_BANDS);
+        userBuckets = new ConcurrentHashMap<>();
+    }
+
+    public void add(User user){
+        int bucket = bucketOf(user);
+        if (userBuckets.putIfAbsent(user, bucket) == null) {
+            bucketSizes.incrementAndGet(bucket);
+            user.addProfileObserver(this);
+        }
+    }
+
+    public void remove(User user){
+        Integer bucket = userBuckets.remove(user);
+        if (bucket != null) {
+            bucketSizes.decrementAndGet(bucket);
+            user.removeProfileObserver(this);
+        }
+    }
+
+    @Override
+    public void onLocationChanged(User user, Location oldLocation, Location newLocation) {
+    }
+
+    @Override
+    public void onProfileChanged(User user) {
+        // Moving inside computeIfPresent serializes concurrent updates for the same user
+        userBuckets.computeIfPresent(user, (k, oldBucket) -> {
+            int newBucket = bucketOf(user);
+            if (newBucket != oldBucket) {
+                bucketSizes.incrementAndGet(newBucket);
+                bucketSizes.decrementAndGet(oldBucket);
+            }
+            return newBucket;
+        });
+    }
+
+    // Buckets whose gender and age band the user's preferences accept
+    public boolean[] allowedBuckets(User user){
+        Preference preference = user.getPreference();
+        int fromBand = bandOf(preference.getMinAge());
+        int toBand = bandOf(preference.getMaxAge());
+        boolean[] allowed = new boolean[bucketSizes.length()];
+        for (Gender gender : Gender.values()) {
+            if (preference.isInterestedIn(gender)) {
+                for (int band = fromBand; band <= toBand; band++) {
+                    allowed[gender.ordinal() * AGE_BANDS + band] = true;
+                }
+            }
+        }
+        return allowed;
+    }
+
+    public boolean anyUsersIn(boolean[] allowed){
+        for (int bucket = 0; bucket < allowed.length; bucket++) {
+            if (allowed[bucket] && bucketSizes.get(bucket) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Candidates that fit the user's gender/age preferences and whose preferences accept the user
+    public ArrayList<User> filterCompatible(User user, boolean[] allowed, ArrayList<User> candidates){
+        Preference preference = user.getPreference();
+        Gender gender = user.getUserProfile().getGender();
+        int age = user.getUserProfile().getAge();
+
+        ArrayList<User> compatible = new ArrayList<>();
+        for (User candidate : candidates) {
+            if (candidate != user
+                    && allowed[bucketOf(candidate)]
+                    && preference.isAgeInRange(candidate.getUserProfile().getAge())
+                    && candidate.getPreference().isInterestedIn(gender)
+                    && candidate.getPreference().isAgeInRange(age)) {
+                compatible.add(candidate);
+            }
+        }
+        return compatible;
+    }
+
+    private int bucketOf(User user){
+        return user.getUserProfile().getGender().ordinal() * AGE_BANDS + bandOf(user.getUserProfile().getAge());
+    }
+
+    private static int bandOf(int age){
+        return Math.max(0, Math.min(age, MAX_AGE)) / AGE_BAND_YEARS;
+    }
+}
+
+// ---------------- Feed Cache ------------------------
+
+interface FeedScorer {
+    // Score of candidate in user's feed, or 0 if the candidate no longer belongs in it
+    public double score(User user, User candidate, double maxDistance);
+}
+
+// Per-user ranked feeds with TTL expiry and LRU eviction. A user's own feed is dropped when
+// that user moves or changes profile/preferences; when a user who appears in other feeds
+// changes, only that one candidate is re-scored in those feeds. Swipes remove the swiped
+// candidate from the swiper's feed without recomputing anything.
+class FeedCache implements ProfileObserver {
+    private static class Entry {
+        private final User owner;
+        private final ArrayList<ScoredUser> feed;
+        private final double maxDistance;
+        // Whether the feed held every eligible candidate when it was computed. Fixed at fill
+        // time: candidates removed later do not make a truncated feed complete.
+        private final boolean complete;
+        private final long createdAt;
+
+        Entry(User owner, ArrayList<ScoredUser> feed, double maxDistance, boolean complete, long createdAt) {
+            this.owner = owner;
+            this.feed = feed;
+            this.maxDistance = maxDistance;
+            this.complete = complete;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static final Comparator<ScoredUser> BEST_FIRST = Comparator.comparingDouble(ScoredUser::getScore).reversed();
+
+    private LinkedHashMap<String, Entry> entries;
+    private HashMap<String, Set<String>> feedsContaining;
+    private FeedScorer scorer;
+    private long ttlNanos;
+    private long hits;
+    private long misses;
+
+    public FeedCache(int maxEntries, long ttlMillis, FeedScorer scorer){
+        this.scorer = scorer;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.feedsContaining = new HashMap<>();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > maxEntries) {
+                    unlink(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Cached feed trimmed to limit, or null when it has to be recomputed
+    public synchronized ArrayList<ScoredUser> get(String userId, double maxDistance, int limit){
+        Entry entry = entries.get(userId);
+        if (entry != null && System.nanoTime() - entry.createdAt > ttlNanos) {
+            remove(userId);
+            entry = null;
+        }
+        if (entry == null || entry.maxDistance != maxDistance || (entry.feed.size() < limit && !entry.complete)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new ArrayList<>(entry.feed.subList(0, Math.min(limit, entry.feed.size())));
+    }
+
+    // complete: the producer ranked every eligible candidate, not just the best limit of them
+    public synchronized void put(User user, double maxDistance, ArrayList<ScoredUser> feed, boolean complete){
+        String userId = user.getId();
+        remove(userId);
+        Entry entry = new Entry(user, new ArrayList<>(feed), maxDistance, complete, System.nanoTime());
+        entries.put(userId, entry);
+        for (ScoredUser scored : entry.feed) {
+            feedsContaining.computeIfAbsent(scored.getUser().getId(), k -> new HashSet<>()).add(userId);
+        }
+    }
+
+    public synchronized void invalidate(String userId){
+        remove(userId);
+    }
+
+    public synchronized void clear(){
+        entries.clear();
+        feedsContaining.clear();
+    }
+
+    public synchronized void removeCandidate(String userId, String candidateId){
+        Entry entry = entries.get(userId);
+        if (entry == null) {
+            return;
+        }
+        entry.feed.removeIf(scored -> scored.getUser().getId().equals(candidateId));
+        Set<String> owners = feedsContaining.get(candidateId);
+        if (owners != null) {
+            owners.remove(userId);
+        }
+    }
+
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    // Refreshed from onProfileEdited, which follows every location change
+    @Override
+    public void onLocationChanged(User user, Location oldLocation, Location newLocation) {
+    }
+
+    // Covers interest edits too, which change scores without a more specific callback
+    @Override
+    public void onProfileEdited(User user, ProfileField field) {
+        refresh(user);
+    }
+
+    private synchronized void refresh(User user){
+        remove(user.getId());
+
+        Set<String> owners = feedsContaining.get(user.getId());
+        if (owners == null) {
+            return;
+        }
+        for (String ownerId : new ArrayList<>(owners)) {
+            Entry entry = entries.get(ownerId);
+            if (entry == null) {
+                owners.remove(ownerId);
+                continue;
+            }
+            double score = scorer.score(entry.owner, user, entry.maxDistance);
+            entry.feed.removeIf(scored -> scored.getUser() == user);
+            if (score > 0) {
+                entry.feed.add(new ScoredUser(user, score));
+                entry.feed.sort(BEST_FIRST);
+            } else {
+                owners.remove(ownerId);
+            }
+        }
+        if (owners.isEmpty()) {
+            feedsContaining.remove(user.getId());
+        }
+    }
+
+    private void remove(String userId){
+        Entry entry = entries.remove(userId);
+        if (entry != null) {
+            unlink(userId, entry);
+        }
+    }
+
+    private void unlink(String userId, Entry entry){
+        for (ScoredUser scored : entry.feed) {
+            Set<String> owners = feedsContaining.get(scored.getUser().getId());
+            if (owners != null) {
+                owners.remove(userId);
+                if (owners.isEmpty()) {
+                    feedsContaining.remove(scored.getUser().getId());
+                }
+            }
+        }
+    }
+}
+
+// ---------------- Match Engine ------------------------
+
+// Lock-free mutual-like detection. A swipe records the like before checking the reverse like,
+// and both operations go through the swiping user's synchronized SwipeHistory, so of two
+// simultaneous right-swipes at least one observes the other. The pair-keyed putIfAbsent then
+// lets exactly one of them create the chat room and emit the match.
+class MatchEngine {
+    private ChatRoomIndex chatRooms;
+
+    public MatchEngine(ChatRoomIndex chatRooms){
+        this.chatRooms = chatRooms;
+    }
+
+    // Returns the new chat room when this swipe completed a match, null otherwise
+    public ChatRoom recordSwipe(User user, User targetUser, SwipeAction action){
+        user.swipe(targetUser.getId(), action);
+
+        if (action != SwipeAction.RIGHT || !targetUser.hasLiked(user.getId())) {
+            return null;
+        }
+        if (chatRooms.get(user.getId(), targetUser.getId()) != null) {
+            return null;
+        }
+
+        ArrayList<String> participants = new ArrayList<>();
+        participants.add(user.getId());
+        participants.add(targetUser.getId());
+        ChatRoom chatRoom = new ChatRoom(user.getId() + "_" + targetUser.getId(), participants);
+        return chatRooms.addIfAbsent(chatRoom) ? chatRoom : null;
+    }
+}
+
+// ---------------- Metrics ------------------------
+
+enum TinderOperation {
+    SWIPE,
+    FIND_NEARBY_USERS,
+    FEED_COMPUTE,
+    LOCATION_QUERY,
+    MATCH_SCORING,
+    SEND_MESSAGE,
+    LOCATION_FLUSH
+}
+
+enum TinderCounter {
+    RIGHT_SWIPES,
+    LEFT_SWIPES,
+    MATCHES,
+    MESSAGES,
+    CANDIDATES_SCORED,
+    LOCATION_UPDATES
+}
+
+// Log-linear latency histogram in the style of HdrHistogram: every power of two is split into
+// 32 linear sub-buckets, so any recorded value is reported within ~3% using a fixed 1920 slots
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private AtomicLongArray counts;
+    private LongAdder count;
+    private LongAdder sum;
+    private LongAccumulator max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new LongAccumulator(Long::max, 0);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public LatencySnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        long largest = max.get();
+        return new LatencySnapshot(total, total == 0 ? 0.0 : (double) sum.sum() / count.sum(),
+            valueAt(copy, total, largest, 50.0), valueAt(copy, total, largest, 90.0), valueAt(copy, total, largest, 99.0),
+            valueAt(copy, total, largest, 99.9), largest);
+    }
+
+    // Reports the top of the bucket holding the percentile, capped at the largest value seen
+    private static long valueAt(long[] counts, long total, long largest, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), largest);
+            }
+        }
+        return largest;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
+
+// Latencies are in nanoseconds
+class LatencySnapshot {
+    private long count;
+    private double mean;
+    private long p50;
+    private long p90;
+    private long p99;
+    private long p999;
+    private long max;
+
+    public LatencySnapshot(long count, double mean, long p50, long p90, long p99, long p999, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    public long getMax() {
+        return max;
+    }
+}
+
+class MetricsSnapshot {
+    private Map<TinderOperation, LatencySnapshot> latencies;
+    private Map<TinderCounter, Long> counters;
+
+    public MetricsSnapshot(Map<TinderOperation, LatencySnapshot> latencies, Map<TinderCounter, Long> counters) {
+        this.latencies = latencies;
+        this.counters = counters;
+    }
+
+    public LatencySnapshot getLatency(TinderOperation operation) {
+        return latencies.get(operation);
+    }
+
+    public long getCounter(TinderCounter counter) {
+        return counters.get(counter);
+    }
+
+    public void display() {
+        System.out.printf("%-18s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "max(us)");
+        for (Map.Entry<TinderOperation, LatencySnapshot> entry : latencies.entrySet()) {
+            LatencySnapshot latency = entry.getValue();
+            if (latency.getCount() == 0) {
+                continue;
+            }
+            System.out.printf("%-18s %10d %10.1f %10.1f %10.1f %10.1f %10.1f%n", entry.getKey(), latency.getCount(),
+                latency.getMean() / 1e3, latency.getP50() / 1e3, latency.getP99() / 1e3, latency.getP999() / 1e3, latency.getMax() / 1e3);
+        }
+        for (Map.Entry<TinderCounter, Long> entry : counters.entrySet()) {
+            System.out.printf("%-18s %10d%n", entry.getKey(), entry.getValue());
+        }
+    }
+}
+
+interface MetricsReporter {
+    void report(MetricsSnapshot snapshot);
+}
+
+class ConsoleMetricsReporter implements MetricsReporter {
+    @Override
+    public void report(MetricsSnapshot snapshot) {
+        System.out.println("--------------- Tinder Metrics ---------------------");
+        snapshot.display();
+    }
+}
+
+// Process-wide timers and counters for the hot paths. Disabled by default: start() is then a
+// single volatile read returning 0 and stop() returns immediately, so call sites stay in place.
+// Hot classes keep their own reference to avoid the synchronized getInstance() per call.
+class TinderMetrics {
+    // Attributes visible in JConsole under Tinder:type=Metrics
+    public interface MXBean {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        Map<String, Long> getCounts();
+
+        Map<String, Long> getCounters();
+
+        Map<String, Double> getMeanMicros();
+
+        Map<String, Double> getP99Micros();
+
+        Map<String, Double> getMaxMicros();
+
+        void reset();
+    }
+
+    private static TinderMetrics instance;
+
+    private volatile boolean enabled;
+    private volatile LatencyHistogram[] histograms;
+    private volatile LongAdder[] counters;
+    private CopyOnWriteArrayList<MetricsReporter> reporters;
+    private ScheduledExecutorService reportingExecutor;
+
+    private TinderMetrics() {
+        this.reporters = new CopyOnWriteArrayList<>();
+        reset();
+    }
+
+    public static synchronized TinderMetrics getInstance() {
+        if (instance == null) {
+            instance = new TinderMetrics();
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    public void stop(TinderOperation operation, long start) {
+        if (start != 0L) {
+            histograms[operation.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    public void increment(TinderCounter counter) {
+        if (enabled) {
+            counters[counter.ordinal()].increment();
+        }
+    }
+
+    public void add(TinderCounter counter, long amount) {
+        if (enabled) {
+            counters[counter.ordinal()].add(amount);
+        }
+    }
+
+    public void reset() {
+        LatencyHistogram[] freshHistograms = new LatencyHistogram[TinderOperation.values().length];
+        for (int i = 0; i < freshHistograms.length; i++) {
+            freshHistograms[i] = new LatencyHistogram();
+        }
+        LongAdder[] freshCounters = new LongAdder[TinderCounter.values().length];
+        for (int i = 0; i < freshCounters.length; i++) {
+            freshCounters[i] = new LongAdder();
+        }
+        histograms = freshHistograms;
+        counters = freshCounters;
+    }
+
+    public MetricsSnapshot snapshot() {
+        LatencyHistogram[] histograms = this.histograms;
+        LongAdder[] counters = this.counters;
+        Map<TinderOperation, LatencySnapshot> latencies = new EnumMap<>(TinderOperation.class);
+        for (TinderOperation operation : TinderOperation.values()) {
+            latencies.put(operation, histograms[operation.ordinal()].snapshot());
+        }
+        Map<TinderCounter, Long> counts = new EnumMap<>(TinderCounter.class);
+        for (TinderCounter counter : TinderCounter.values()) {
+            counts.put(counter, counters[counter.ordinal()].sum());
+        }
+        return new MetricsSnapshot(latencies, counts);
+    }
+
+    public void addReporter(MetricsReporter reporter) {
+        reporters.add(reporter);
+    }
+
+    public void removeReporter(MetricsReporter reporter) {
+        reporters.remove(reporter);
+    }
+
+    public void report() {
+        MetricsSnapshot snapshot = snapshot();
+        for (MetricsReporter reporter : reporters) {
+            reporter.report(snapshot);
+        }
+    }
+
+    public synchronized void startReporting(long intervalMillis) {
+        stopReporting();
+        reportingExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tinder-metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reportingExecutor.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopReporting() {
+        if (reportingExecutor != null) {
+            reportingExecutor.shutdown();
+            reportingExecutor = null;
+        }
+    }
+
+    // Registers the metrics with the platform MBean server; safe to call more than once
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("Tinder:type=Metrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(new MXBeanAdapter(), MXBean.class, true), name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics MBean", e);
+        }
+    }
+
+    private class MXBeanAdapter implements MXBean {
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            TinderMetrics.this.setEnabled(enabled);
+        }
+
+        @Override
+        public Map<String, Long> getCounts() {
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (TinderOperation operation : TinderOperation.values()) {
+                result.put(operation.name(), histograms[operation.ordinal()].snapshot().getCount());
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getCounters() {
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (TinderCounter counter : TinderCounter.values()) {
+                result.put(counter.name(), counters[counter.ordinal()].sum());
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Double> getMeanMicros() {
+            Map<String, Double> result = new LinkedHashMap<>();
+            for (TinderOperation operation : TinderOperation.values()) {
+                result.put(operation.name(), histograms[operation.ordinal()].snapshot().getMean() / 1e3);
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Double> getP99Micros() {
+            Map<String, Double> result = new LinkedHashMap<>();
+            for (TinderOperation operation : TinderOperation.values()) {
+                result.put(operation.name(), histograms[operation.ordinal()].snapshot().getP99() / 1e3);
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Double> getMaxMicros() {
+            Map<String, Double> result = new LinkedHashMap<>();
+            for (TinderOperation operation : TinderOperation.values()) {
+                result.put(operation.name(), histograms[operation.ordinal()].snapshot().getMax() / 1e3);
+            }
+            return result;
+        }
+
+        @Override
+        public void reset() {
+            TinderMetrics.this.reset();
+        }
+    }
+}
+
+// ---------------- Persistence ------------------------
+
+// Binary snapshot plus write-ahead log. Tinder logs each create/profile/swipe/message record
+// as it applies it; a snapshot captures the full state and starts a fresh log. Both files are
+// sequences of length-prefixed records, so restore maps them read-only a window at a time (any
+// file size) and replays whatever the log recorded after the snapshot.
+// Operations hold the read side of a lock while logging and applying, so a snapshot (write
+// side) never misses an operation that was logged into the log it truncates.
+class TinderPersistence {
+    private static final int SNAPSHOT_MAGIC = 0x544E4452;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int MAP_WINDOW_BYTES = 64 << 20;
+    private static final byte RECORD_CREATE_USER = 1;
+    private static final byte RECORD_PROFILE = 2;
+    private static final byte RECORD_SWIPE = 3;
+    private static final byte RECORD_MESSAGE = 4;
+    private static final byte RECORD_PROFILE_FIELD = 5;
+
+    private static final TinderPersistence DISABLED = new TinderPersistence();
+
+    private Path snapshotFile;
+    private Path walFile;
+    private boolean syncWrites;
+    private FileChannel wal;
+    private ReentrantReadWriteLock lock;
+
+    private TinderPersistence(){
+    }
+
+    public TinderPersistence(Path directory, boolean syncWrites) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotFile = directory.resolve("tinder.snapshot");
+        this.walFile = directory.resolve("tinder.wal");
+        this.syncWrites = syncWrites;
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    // Null object used by Tinder while persistence is not configured
+    public static TinderPersistence disabled(){
+        return DISABLED;
+    }
+
+    public boolean isEnabled(){
+        return lock != null;
+    }
+
+    public void beginOperation(){
+        if (lock != null) {
+            lock.readLock().lock();
+        }
+    }
+
+    public void endOperation(){
+        if (lock != null) {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void logCreateUser(String userId){
+        if (!isEnabled()) {
+            return;
+        }
+        append(RECORD_CREATE_USER, out -> writeString(out, userId));
+    }
+
+    public void logProfile(User user){
+        if (!isEnabled()) {
+            return;
+        }
+        append(RECORD_PROFILE, out -> {
+            writeString(out, user.getId());
+            writeProfile(out, user);
+        });
+    }
+
+    // One edit logs only the field it changed
+    public void logProfileField(User user, ProfileField field){
+        if (!isEnabled()) {
+            return;
+        }
+        append(RECORD_PROFILE_FIELD, out -> {
+            writeString(out, user.getId());
+            out.writeByte(field.ordinal());
+            writeField(out, user, field);
+        });
+    }
+
+    public void logSwipe(String userId, String targetUserId, SwipeAction action){
+        if (!isEnabled()) {
+            return;
+        }
+        append(RECORD_SWIPE, out -> {
+            writeString(out, userId);
+            writeString(out, targetUserId);
+            out.writeByte(action.ordinal());
+        });
+    }
+
+    public void logMessage(String senderId, String receiverId, Message message){
+        if (!isEnabled()) {
+            return;
+        }
+        append(RECORD_MESSAGE, out -> {
+            writeString(out, senderId);
+            writeString(out, receiverId);
+            writeMessage(out, message);
+        });
+    }
+
+    // Writes users, profiles, swipes and chat rooms to a new snapshot and starts an empty log
+    public void snapshot(Tinder tinder) throws IOException {
+        lock.writeLock().lock();
+        try {
+            Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+
+                ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+                ArrayList<User> users = tinder.getAllUsers();
+                out.writeInt(users.size());
+                for (User user : users) {
+                    writeRecord(out, record, body -> {
+                        writeString(body, user.getId());
+                        writeProfile(body, user);
+                        writeSwipes(body, user.getSwipeHistory().getLikes());
+                        writeSwipes(body, user.getSwipeHistory().getDislikes());
+                    });
+                }
+
+                ArrayList<ChatRoom> chatRooms = tinder.getAllChatRooms();
+                out.writeInt(chatRooms.size());
+                for (ChatRoom chatRoom : chatRooms) {
+                    writeRecord(out, record, body -> {
+                        writeString(body, chatRoom.getId());
+                        body.writeInt(chatRoom.getParticipantsId().size());
+                        for (String participant : chatRoom.getParticipantsId()) {
+                            writeString(body, participant);
+                        }
+                        ArrayList<Message> messages = chatRoom.getMessages();
+                        body.writeInt(messages.size());
+                        for (Message message : messages) {
+                            writeMessage(body, message);
+                        }
+                    });
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized (this) {
+                closeWal();
+                Files.deleteIfExists(walFile);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Loads the snapshot and replays the log into an empty Tinder instance
+    public void restore(Tinder tinder) throws IOException {
+        if (Files.exists(snapshotFile)) {
+            try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+                readSnapshot(new MappedReader(channel), tinder);
+            }
+        }
+        if (Files.exists(walFile)) {
+            try (FileChannel channel = FileChannel.open(walFile, StandardOpenOption.READ)) {
+                replayWal(new MappedReader(channel), tinder);
+            }
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        closeWal();
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // Reads a file front to back through read-only mappings of at most MAP_WINDOW_BYTES, so no
+    // single mapping has to cover a file past 2GB. A record is always handed out whole.
+    private static class MappedReader {
+        private final FileChannel channel;
+        private final long size;
+        private long position;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        // The next length bytes, or null if the file ends first
+        ByteBuffer take(int length) throws IOException {
+            if (length < 0 || size - position < length) {
+                return null;
+            }
+            if (window == null || position + length > windowStart + window.capacity()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.max(length, Math.min(MAP_WINDOW_BYTES, size - position)));
+            }
+            ByteBuffer slice = window.slice((int) (position - windowStart), length);
+            position += length;
+            return slice;
+        }
+
+        int readInt() throws IOException {
+            ByteBuffer bytes = take(Integer.BYTES);
+            if (bytes == null) {
+                throw new IOException("Unexpected end of file");
+            }
+            return bytes.getInt();
+        }
+
+        ByteBuffer readRecord() throws IOException {
+            ByteBuffer record = take(readInt());
+            if (record == null) {
+                throw new IOException("Truncated record");
+            }
+            return record;
+        }
+    }
+
+    // Snapshot record layout: [int length][payload]
+    private static void writeRecord(DataOutputStream out, ByteArrayOutputStream buffer, RecordWriter writer) throws IOException {
+        buffer.reset();
+        writer.write(new DataOutputStream(buffer));
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+
+    // Record layout: [int length][int crc32][byte type][payload]
+    private void append(byte type, RecordWriter writer){
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            writer.write(out);
+            byte[] payload = bytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+            record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+
+            synchronized (this) {
+                FileChannel channel = wal();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                if (syncWrites) {
+                    channel.force(false);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append to write-ahead log", e);
+        }
+    }
+
+    private FileChannel wal() throws IOException {
+        if (wal == null) {
+            wal = FileChannel.open(walFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return wal;
+    }
+
+    private void closeWal() throws IOException {
+        if (wal != null) {
+            wal.close();
+            wal = null;
+        }
+    }
+
+    private void readSnapshot(MappedReader reader, Tinder tinder) throws IOException {
+        if (reader.readInt() != SNAPSHOT_MAGIC || reader.readInt() != SNAPSHOT_VERSION) {
+            throw new IOException("Unrecognized snapshot format");
+        }
+
+        UserIdDictionary dictionary = UserIdDictionary.getInstance();
+        int userCount = reader.readInt();
+        for (int i = 0; i < userCount; i++) {
+            ByteBuffer in = reader.readRecord();
+            User user = tinder.createUser(readString(in));
+            readProfile(in, user);
+            int likes = in.getInt();
+            for (int j = 0; j < likes; j++) {
+                user.getSwipeHistory().record(dictionary.idOf(readString(in)), SwipeAction.RIGHT);
+            }
+            int dislikes = in.getInt();
+            for (int j = 0; j < dislikes; j++) {
+                user.getSwipeHistory().record(dictionary.idOf(readString(in)), SwipeAction.LEFT);
+            }
+        }
+
+        int roomCount = reader.readInt();
+        for (int i = 0; i < roomCount; i++) {
+            ByteBuffer in = reader.readRecord();
+            String id = readString(in);
+            int participantCount = in.getInt();
+            ArrayList<String> participants = new ArrayList<>(participantCount);
+            for (int j = 0; j < participantCount; j++) {
+                participants.add(readString(in));
+            }
+            ChatRoom chatRoom = new ChatRoom(id, participants);
+            int messageCount = in.getInt();
+            for (int j = 0; j < messageCount; j++) {
+                chatRoom.addMessage(readMessage(in));
+            }
+            tinder.restoreChatRoom(chatRoom);
+        }
+    }
+
+    private void replayWal(MappedReader reader, Tinder tinder) throws IOException {
+        CRC32 crc = new CRC32();
+        while (true) {
+            ByteBuffer header = reader.take(8);
+            if (header == null) {
+                break;
+            }
+            int length = header.getInt();
+            int checksum = header.getInt();
+            ByteBuffer payload = length > 0 ? reader.take(length) : null;
+            if (payload == null) {
+                break;
+            }
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                // Torn write at the tail of the log; everything before it is intact
+                break;
+            }
+            applyRecord(payload, tinder);
+        }
+    }
+
+    private void applyRecord(ByteBuffer in, Tinder tinder){
+        byte type = in.get();
+        switch (type) {
+            case RECORD_CREATE_USER:
+                tinder.createUser(readString(in));
+                break;
+            case RECORD_PROFILE: {
+                User user = tinder.createUser(readString(in));
+                readProfile(in, user);
+                break;
+            }
+            case RECORD_PROFILE_FIELD: {
+                User user = tinder.createUser(readString(in));
+                readField(in, user, ProfileField.values()[in.get()]);
+                break;
+            }
+            case RECORD_SWIPE: {
+                String userId = readString(in);
+                String targetUserId = readString(in);
+                tinder.replaySwipe(userId, targetUserId, SwipeAction.values()[in.get()]);
+                break;
+            }
+            case RECORD_MESSAGE: {
+                String senderId = readString(in);
+                String receiverId = readString(in);
+                ChatRoom chatRoom = tinder.getChatRoom(senderId, receiverId);
+                Message message = readMessage(in);
+                if (chatRoom != null) {
+                    chatRoom.addMessage(message);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private static void writeProfile(DataOutputStream out, User user) throws IOException {
+        for (ProfileField field : ProfileField.values()) {
+            writeField(out, user, field);
+        }
+    }
+
+    // Replaces the user's profile and preferences with the recorded ones
+    private static void readProfile(ByteBuffer in, User user){
+        for (ProfileField field : ProfileField.values()) {
+            readField(in, user, field);
+        }
+    }
+
+    // Collections are written whole, so replaying a field record needs nothing before it
+    private static void writeField(DataOutputStream out, User user, ProfileField field) throws IOException {
+        UserProfile profile = user.getUserProfile();
+        switch (field) {
+            case NAME:
+                writeString(out, profile.getName());
+                break;
+            case AGE:
+                out.writeInt(profile.getAge());
+                break;
+            case GENDER:
+                out.writeByte(profile.getGender().ordinal());
+                break;
+            case BIO:
+                writeString(out, profile.getBio());
+                break;
+            case PHOTOS: {
+                ArrayList<String> photos = new ArrayList<>(profile.getPhotos());
+                out.writeInt(photos.size());
+                for (String photo : photos) {
+                    writeString(out, photo);
+                }
+                break;
+            }
+            case INTERESTS: {
+                ArrayList<Interest> interests = new ArrayList<>(profile.getInterests());
+                out.writeInt(interests.size());
+                for (Interest interest : interests) {
+                    writeString(out, interest.getName());
+                    writeString(out, interest.getCategory());
+                }
+                break;
+            }
+            case LOCATION:
+                out.writeDouble(profile.getLocation().getLatitude());
+                out.writeDouble(profile.getLocation().getLongitude());
+                break;
+            case PREFERENCES: {
+                Preference preference = user.getPreference();
+                ArrayList<Gender> interestedIn = new ArrayList<>(preference.getInterestedIn());
+                out.writeInt(interestedIn.size());
+                for (Gender gender : interestedIn) {
+                    out.writeByte(gender.ordinal());
+                }
+                out.writeInt(preference.getMinAge());
+                out.writeInt(preference.getMaxAge());
+                out.writeDouble(preference.getMaxDistance());
+                ArrayList<String> preferredInterests = new ArrayList<>(preference.getInterests());
+                out.writeInt(preferredInterests.size());
+                for (String interest : preferredInterests) {
+                    writeString(out, interest);
+                }
+                break;
+            }
+        }
+    }
+
+    private static void readField(ByteBuffer in, User user, ProfileField field){
+        UserProfile profile = user.getUserProfile();
+        switch (field) {
+            case NAME:
+                profile.setName(readString(in));
+                break;
+            case AGE:
+                profile.setAge(in.getInt());
+                break;
+            case GENDER:
+                profile.setGender(Gender.values()[in.get()]);
+                break;
+            case BIO:
+                profile.setBio(readString(in));
+                break;
+            case PHOTOS: {
+                for (String photo : new ArrayList<>(profile.getPhotos())) {
+                    profile.removePhoto(photo);
+                }
+                int photos = in.getInt();
+                for (int i = 0; i < photos; i++) {
+                    profile.addPhoto(readString(in));
+                }
+                break;
+            }
+            case INTERESTS: {
+                for (Interest interest : new ArrayList<>(profile.getInterests())) {
+                    profile.removeInterest(interest);
+                }
+                int interests = in.getInt();
+                for (int i = 0; i < interests; i++) {
+                    profile.addInterest(new Interest(readString(in), readString(in)));
+                }
+                break;
+            }
+            case LOCATION:
+                profile.setLocation(new Location(in.getDouble(), in.getDouble()));
+                break;
+            case PREFERENCES: {
+                Preference preference = user.getPreference();
+                for (Gender gender : new ArrayList<>(preference.getInterestedIn())) {
+                    preference.removeGenderPreference(gender);
+                }
+                int genders = in.getInt();
+                for (int i = 0; i < genders; i++) {
+                    preference.addGenderPreference(Gender.values()[in.get()]);
+                }
+                preference.setAgeRange(in.getInt(), in.getInt());
+                preference.setMaxDistance(in.getDouble());
+                for (String interest : new ArrayList<>(preference.getInterests())) {
+                    preference.removeInterest(interest);
+                }
+                int preferredInterests = in.getInt();
+                for (int i = 0; i < preferredInterests; i++) {
+                    preference.addInterest(readString(in));
+                }
+                break;
+            }
+        }
+    }
+
+    private static void writeSwipes(DataOutputStream out, int[] userIds) throws IOException {
+        UserIdDictionary dictionary = UserIdDictionary.getInstance();
+        out.writeInt(userIds.length);
+        for (int userId : userIds) {
+            writeString(out, dictionary.nameOf(userId));
+        }
+    }
+
+    private static void writeMessage(DataOutputStream out, Message message) throws IOException {
+        writeString(out, message.getSenderId());
+        writeString(out, message.getContent());
+        out.writeLong(message.getFormattedTime().toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(message.getFormattedTime().getNano());
+    }
+
+    private static Message readMessage(ByteBuffer in){
+        String senderId = readString(in);
+        String content = readString(in);
+        long seconds = in.getLong();
+        int nanos = in.getInt();
+        return new Message(senderId, content, LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in){
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// ---------------- Dating App ------------------------
+
+class Tinder {
+    private UserRegistry users;
+    private ChatRoomIndex chatRooms;
+    private volatile Matcher matcher;
+    private MatchScoringEngine scoringEngine;
+    private MatchEngine matchEngine;
+    private DiscoveryIndex discoveryIndex;
+    private FeedCache feedCache;
+    private volatile TinderPersistence persistence;
+    private LocationService locationService;
+    private ProfileObserver profileLogger;
+    private TinderMetrics metrics;
+    private static Tinder instance;
+
+    private Tinder(){
+        this(LocationService.getInstance());
+    }
+
+    private Tinder(LocationService locationService){
+        this.locationService = locationService;
+        this.metrics = TinderMetrics.getInstance();
+        matcher = MatcherFactory.createMatcher(MatcherType.LOCATION_BASED);
+        users = new UserRegistry();
+        scoringEngine = new MatchScoringEngine();
+        chatRooms = new ChatRoomIndex();
+        matchEngine = new MatchEngine(chatRooms);
+        discoveryIndex = new DiscoveryIndex();
+        feedCache = new FeedCache(10_000, 5 * 60 * 1000, this::scoreCandidate);
+        persistence = TinderPersistence.disabled();
+        profileLogger = new ProfileObserver() {
+            @Override
+            public void onLocationChanged(User user, Location oldLocation, Location newLocation) {
+            }
+
+            @Override
+            public void onProfileEdited(User user, ProfileField field) {
+                logProfileField(user, field);
+            }
+        };
+    }
+
+    public static synchronized Tinder getInstance(){
+        if (instance == null) {
+            instance = new Tinder();
+        }
+        return instance;
+    }
+
+    // Independent instance with its own grid index, used as one partition of a ShardedTinder
+    public static Tinder newShard(){
+        return new Tinder(LocationService.createIsolated(new GridLocationStrategy()));
+    }
+
+    public void setMatcher(MatcherType type){
+        matcher = MatcherFactory.createMatcher(type);
+        feedCache.clear();
+    }
+
+    // Restores state from the persistence directory, then logs every later change to it
+    public void enablePersistence(TinderPersistence persistence) throws IOException {
+        this.persistence = TinderPersistence.disabled();
+        persistence.restore(this);
+        this.persistence = persistence;
+    }
+
+    public void snapshot() throws IOException {
+        if (persistence.isEnabled()) {
+            persistence.snapshot(this);
+        }
+    }
+
+    public User createUser(String userId){
+        TinderPersistence persistence = this.persistence;
+        persistence.beginOperation();
+        try {
+            User user = users.createIfAbsent(userId);
+            if (user == null) {
+                return users.get(userId);
+            }
+            persistence.logCreateUser(userId);
+            attach(user);
+            return user;
+        } finally {
+            persistence.endOperation();
+        }
     }
-}
-
-class LocationBasedMatcher implements Matcher {
 
-    @Override
-    public double CalculateMatchScore(User user1, User user2) {
-        InterestsBasedMatcher interestsMatcher = new InterestsBasedMatcher();
-        double baseScore = interestsMatcher.CalculateMatchScore(user1, user2);
+    // Takes over a user object created elsewhere, e.g. by another shard
+    public boolean adoptUser(User user){
+        if (!users.add(user)) {
+            return false;
+        }
+        attach(user);
+        return true;
+    }
 
-        if (baseScore == 0.0) {
-            return 0.0;
+    public User removeUser(String userId){
+        User user = users.remove(userId);
+        if (user != null) {
+            discoveryIndex.remove(user);
+            user.removeProfileObserver(feedCache);
+            user.removeProfileObserver(profileLogger);
+            feedCache.invalidate(userId);
+            locationService.removeUser(user);
         }
+        return user;
+    }
 
-        double distance = user1.getUserProfile().getLocation().distanceInKm(user2.getUserProfile().getLocation());
-        double maxDistance = Math.min(user1.getPreference().getMaxDistance(), user2.getPreference().getMaxDistance());
+    private void attach(User user){
+        discoveryIndex.add(user);
+        user.addProfileObserver(feedCache);
+        user.addProfileObserver(profileLogger);
+        locationService.addUser(user);
+    }
 
-        double proximityScore = maxDistance > 0 ? 0.2 * (1.0 - (distance / maxDistance)): 0.0;
+    // Profile edits are logged as they happen; this re-logs the whole profile on demand
+    public void saveProfile(String userId){
+        User user = getUserById(userId);
+        if (user != null) {
+            logProfile(user);
+        }
+    }
 
-        return baseScore + proximityScore;
+    private void logProfile(User user){
+        TinderPersistence persistence = this.persistence;
+        persistence.beginOperation();
+        try {
+            persistence.logProfile(user);
+        } finally {
+            persistence.endOperation();
+        }
     }
-}
 
-class MatcherFactory {
-    public static Matcher createMatcher(MatcherType type){
-        switch (type) {
-            case BASIC:
-                return new BasicMatcher();
-            case INTERESTS_BASED:
-                return new InterestsBasedMatcher();
-            case LOCATION_BASED:
-                return new LocationBasedMatcher();
-            default:
-                return null;
+    private void logProfileField(User user, ProfileField field){
+        TinderPersistence persistence = this.persistence;
+        persistence.beginOperation();
+        try {
+            persistence.logProfileField(user, field);
+        } finally {
+            persistence.endOperation();
         }
     }
-}
 
-// ---------------- Dating App ------------------------
+    public ArrayList<User> getAllUsers(){
+        return users.snapshot();
+    }
 
-class Tinder {
-    private ArrayList<User> users;
-    private ArrayList<ChatRoom> chatRooms;
-    private Matcher matcher;
-    private static Tinder instance;
+    public ArrayList<ChatRoom> getAllChatRooms(){
+        return chatRooms.getAll();
+    }
 
-    private Tinder(){
-        matcher = MatcherFactory.createMatcher(MatcherType.LOCATION_BASED);
-        users = new ArrayList<>();
-        chatRooms = new ArrayList<>();
+    public void restoreChatRoom(ChatRoom chatRoom){
+        chatRooms.add(chatRoom);
     }
 
-    public static Tinder getInstance(){
-        if (instance == null) {
-            instance = new Tinder();
+    // Re-applies a logged swipe without notifications or further logging
+    public void replaySwipe(String userId, String targetUserId, SwipeAction action){
+        User user = getUserById(userId);
+        User targetUser = getUserById(targetUserId);
+        if (user != null && targetUser != null) {
+            matchEngine.recordSwipe(user, targetUser, action);
         }
-        return instance;
     }
 
-    public void setMatcher(MatcherType type){
-        matcher = MatcherFactory.createMatcher(type);
+    public User getUserById(String userId){
+        return users.get(userId);
     }
 
-    public User createUser(String userId){
-        User user = new User(userId);
-        users.add(user);
-        return user;
+    // Nearby users with a positive match score, best match first
+    public ArrayList<User> findNearbyUsers(String userId, double maxDistance){
+        return findNearbyUsers(userId, maxDistance, Integer.MAX_VALUE);
     }
 
-    public User getUserById(String userId){
-        for(User user: users){
-            if (user.getId().equals(userId)) {
-                return user;
-            }
+    public ArrayList<User> findNearbyUsers(String userId, double maxDistance, int limit){
+        long start = metrics.start();
+        ArrayList<User> feed = new ArrayList<>();
+        for (ScoredUser scored : getRankedFeed(userId, maxDistance, limit)) {
+            feed.add(scored.getUser());
         }
-        return null;
+        metrics.stop(TinderOperation.FIND_NEARBY_USERS, start);
+        return feed;
     }
 
-    public ArrayList<User> findNearbyUsers(String userId, double maxDistance){
+    public ArrayList<ScoredUser> getRankedFeed(String userId, double maxDistance, int limit){
         User user = getUserById(userId);
         if (user == null) {
             return new ArrayList<>();
         }
 
-        ArrayList<User> nearbyUsers = LocationService.getInstance().findNearbyUsers(user.getUserProfile().getLocation(), maxDistance, users);
+        ArrayList<ScoredUser> cached = feedCache.get(userId, maxDistance, limit);
+        if (cached != null) {
+            return cached;
+        }
+        ArrayList<ScoredUser> feed = computeRankedFeed(user, maxDistance, limit);
+        // Top-K only stops short of limit once it has run out of positively scored candidates
+        feedCache.put(user, maxDistance, feed, feed.size() < limit);
+        return feed;
+    }
 
-        nearbyUsers.remove(user);
+    // Ranks this instance's users for a user that may live elsewhere; results are not cached
+    public ArrayList<ScoredUser> rankCandidatesFor(User user, double maxDistance, int limit){
+        return computeRankedFeed(user, maxDistance, limit);
+    }
 
-        ArrayList<User> filteredUsers = new ArrayList<>();
-        for (User otherUser : nearbyUsers) {
-            if (user.hasInteractedWith(otherUser.getId())) {
-                continue;
-            }
+    private ArrayList<ScoredUser> computeRankedFeed(User user, double maxDistance, int limit){
+        long start = metrics.start();
+        try {
+            return rankCandidates(user, maxDistance, limit);
+        } finally {
+            metrics.stop(TinderOperation.FEED_COMPUTE, start);
+        }
+    }
 
-            double score = matcher.CalculateMatchScore(otherUser, user);
+    private ArrayList<ScoredUser> rankCandidates(User user, double maxDistance, int limit){
+        boolean[] allowed = discoveryIndex.allowedBuckets(user);
+        if (!discoveryIndex.anyUsersIn(allowed)) {
+            return new ArrayList<>();
+        }
+        ArrayList<User> nearbyUsers = locationService.findNearbyUsers(user.getUserProfile().getLocation(), maxDistance, users.snapshot());
 
-            if (score > 0) {
-                filteredUsers.add(otherUser);
+        ArrayList<User> candidates = new ArrayList<>();
+        for (User otherUser : discoveryIndex.filterCompatible(user, allowed, nearbyUsers)) {
+            if (!user.hasInteractedWith(otherUser.getId())) {
+                candidates.add(otherUser);
             }
         }
-        return filteredUsers;
+
+        long start = metrics.start();
+        ArrayList<ScoredUser> ranked = scoringEngine.rankTopK(matcher, user, candidates.toArray(new User[0]), Math.min(limit, candidates.size()));
+        metrics.stop(TinderOperation.MATCH_SCORING, start);
+        metrics.add(TinderCounter.CANDIDATES_SCORED, candidates.size());
+        return ranked;
+    }
+
+    // Re-scores a single cached candidate after it moved or edited its profile
+    private double scoreCandidate(User user, User candidate, double maxDistance){
+        if (user.hasInteractedWith(candidate.getId())) {
+            return 0.0;
+        }
+        if (GeoDistance.distanceWithinKm(user.getUserProfile().getLocation(), candidate.getUserProfile().getLocation(), maxDistance) > maxDistance) {
+            return 0.0;
+        }
+        long start = metrics.start();
+        double score = matcher.CalculateMatchScore(candidate, user);
+        metrics.stop(TinderOperation.MATCH_SCORING, start);
+        metrics.increment(TinderCounter.CANDIDATES_SCORED);
+        return score;
     }
 
     public boolean swipe(String userId, String targetUserId, SwipeAction action){
@@ -682,31 +3806,61 @@ class Tinder {
 
         if (user == null || targetUser == null) {
             System.out.println("User not found");
+            return false;
         }
+        return swipe(user, targetUser, action);
+    }
 
-        user.swipe(targetUserId, action);
-
-        if (action == SwipeAction.RIGHT && targetUser.hasLiked(userId)) {
-            String chatRoomId = userId + "_" + targetUserId;
-            ArrayList<String> participants = new ArrayList<>();
-            participants.add(userId);
-            participants.add(targetUserId);
-            ChatRoom chatRoom = new ChatRoom(chatRoomId, participants);
-            chatRooms.add(chatRoom);
-            NotificationService.getInstance().notifyUser(userId, "You have a new match with " + targetUser.getUserProfile());
-            NotificationService.getInstance().notifyUser(targetUserId, "You have a new match with " + user.getUserProfile());
-            return true;
+    // Swipe between user objects that need not be registered here; the pair's chat room lives here
+    public boolean swipe(User user, User targetUser, SwipeAction action){
+        String userId = user.getId();
+        String targetUserId = targetUser.getId();
+        long start = metrics.start();
+        TinderPersistence persistence = this.persistence;
+        ChatRoom chatRoom;
+        persistence.beginOperation();
+        try {
+            persistence.logSwipe(userId, targetUserId, action);
+            chatRoom = matchEngine.recordSwipe(user, targetUser, action);
+        } finally {
+            persistence.endOperation();
         }
-        return false;
+        feedCache.removeCandidate(userId, targetUserId);
+        metrics.increment(action == SwipeAction.RIGHT ? TinderCounter.RIGHT_SWIPES : TinderCounter.LEFT_SWIPES);
+        if (chatRoom != null) {
+            metrics.increment(TinderCounter.MATCHES);
+            NotificationService.getInstance().notifyUser(userId, NotificationType.MATCH, "You have a new match with " + targetUser.getUserProfile());
+            NotificationService.getInstance().notifyUser(targetUserId, NotificationType.MATCH, "You have a new match with " + user.getUserProfile());
+        }
+        metrics.stop(TinderOperation.SWIPE, start);
+        return chatRoom != null;
     }
 
     public ChatRoom getChatRoom(String userId1, String userId2){
-        for(ChatRoom chatRoom: chatRooms){
-            if (chatRoom.hasParticipant(userId1) && chatRoom.hasParticipant(userId2)) {
-                return chatRoom;
-            }
+        return chatRooms.get(userId1, userId2);
+    }
+
+    // Evicts the pair's room, e.g. on unmatch, and frees its message log
+    public boolean closeChatRoom(String userId1, String userId2) throws IOException {
+        ChatRoom chatRoom = chatRooms.get(userId1, userId2);
+        if (chatRoom == null || !chatRooms.remove(chatRoom)) {
+            return false;
+        }
+        chatRoom.close();
+        return true;
+    }
+
+    // Closes every chat log and the persistence files; call once when the node stops
+    public void shutdown() throws IOException {
+        for (ChatRoom chatRoom : chatRooms.getAll()) {
+            chatRooms.remove(chatRoom);
+            chatRoom.close();
         }
-        return null;
+        persistence.close();
+    }
+
+    public ArrayList<ChatRoom> getChatRooms(String userId){
+        return chatRooms.getRoomsFor(userId);
     }
 
     public void sendMessage(String senderId, String receiverId, String message){
@@ -715,9 +3869,20 @@ class Tinder {
             System.out.println("Chat room not found");
             return;
         }
-        chatRoom.addMessage(senderId, message);
+        long start = metrics.start();
+        TinderPersistence persistence = this.persistence;
+        persistence.beginOperation();
+        try {
+            Message msg = new Message(senderId, message);
+            persistence.logMessage(senderId, receiverId, msg);
+            chatRoom.addMessage(msg);
+        } finally {
+            persistence.endOperation();
+        }
 
-        NotificationService.getInstance().notifyUser(receiverId, "You have a new message from " + getUserById(receiverId));
+        NotificationService.getInstance().notifyUser(receiverId, NotificationType.MESSAGE, "You have a new message from " + senderId);
+        metrics.increment(TinderCounter.MESSAGES);
+        metrics.stop(TinderOperation.SEND_MESSAGE, start);
     }
 
     public void displayUser(String userId){
@@ -739,6 +3904,172 @@ class Tinder {
     }
 }
 
+// ---------------- Sharding ------------------------
+
+// Partitions users across Tinder shards by geo-cell. A user lives in the shard that owns the
+// cell of their current location and migrates when they move to a cell owned by another shard.
+// Discovery fans out to every shard owning a cell that intersects the search radius and merges
+// the ranked results. Swipes and chats are routed by participant pair, so each pair's match
+// state and chat room live in exactly one shard.
+class ShardedTinder implements ProfileObserver {
+    private Tinder[] shards;
+    private double cellSizeDeg;
+    private int lonCells;
+    private ConcurrentHashMap<String, Integer> owners;
+
+    public ShardedTinder(int shardCount, double cellSizeKm){
+        if (shardCount <= 0 || cellSizeKm <= 0) {
+            throw new IllegalArgumentException("Shard count and cell size must be positive");
+        }
+        this.shards = new Tinder[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = Tinder.newShard();
+        }
+        this.cellSizeDeg = cellSizeKm / (GeoDistance.EARTH_RADIUS_KM * Math.PI / 180.0);
+        this.lonCells = (int) Math.ceil(360.0 / cellSizeDeg);
+        this.owners = new ConcurrentHashMap<>();
+    }
+
+    // The id is claimed through computeIfAbsent, which builds the user at most once; a concurrent
+    // caller for the same id waits for that user instead of constructing and discarding its own
+    public User createUser(String userId){
+        User[] created = new User[1];
+        int shard = owners.computeIfAbsent(userId, id -> {
+            User user = new User(id);
+            int home = shardFor(user.getUserProfile().getLocation());
+            shards[home].adoptUser(user);
+            user.addProfileObserver(this);
+            created[0] = user;
+            return home;
+        });
+        return created[0] != null ? created[0] : shards[shard].getUserById(userId);
+    }
+
+    public User getUserById(String userId){
+        Integer shard = owners.get(userId);
+        return shard == null ? null : shards[shard].getUserById(userId);
+    }
+
+    public int getShardCount(){
+        return shards.length;
+    }
+
+    public int getShardOf(String userId){
+        Integer shard = owners.get(userId);
+        return shard == null ? -1 : shard;
+    }
+
+    public int getShardSize(int shard){
+        return shards[shard].getAllUsers().size();
+    }
+
+    @Override
+    public synchronized void onLocationChanged(User user, Location oldLocation, Location newLocation) {
+        Integer current = owners.get(user.getId());
+        int target = shardFor(newLocation);
+        if (current == null || current == target) {
+            return;
+        }
+        shards[current].removeUser(user.getId());
+        shards[target].adoptUser(user);
+        owners.put(user.getId(), target);
+    }
+
+    public ArrayList<User> findNearbyUsers(String userId, double maxDistance, int limit){
+        ArrayList<User> feed = new ArrayList<>();
+        for (ScoredUser scored : getRankedFeed(userId, maxDistance, limit)) {
+            feed.add(scored.getUser());
+        }
+        return feed;
+    }
+
+    public ArrayList<ScoredUser> getRankedFeed(String userId, double maxDistance, int limit){
+        User user = getUserById(userId);
+        if (user == null) {
+            return new ArrayList<>();
+        }
+        ArrayList<ScoredUser> merged = new ArrayList<>();
+        for (int shard : shardsWithin(user.getUserProfile().getLocation(), maxDistance)) {
+            merged.addAll(shards[shard].rankCandidatesFor(user, maxDistance, limit));
+        }
+        merged.sort(Comparator.comparingDouble(ScoredUser::getScore).reversed());
+        return merged.size() > limit ? new ArrayList<>(merged.subList(0, limit)) : merged;
+    }
+
+    public boolean swipe(String userId, String targetUserId, SwipeAction action){
+        User user = getUserById(userId);
+        User targetUser = getUserById(targetUserId);
+        if (user == null || targetUser == null) {
+            System.out.println("User not found");
+            return false;
+        }
+        return pairShard(userId, targetUserId).swipe(user, targetUser, action);
+    }
+
+    public ChatRoom getChatRoom(String userId1, String userId2){
+        return pairShard(userId1, userId2).getChatRoom(userId1, userId2);
+    }
+
+    public boolean closeChatRoom(String userId1, String userId2) throws IOException {
+        return pairShard(userId1, userId2).closeChatRoom(userId1, userId2);
+    }
+
+    public void shutdown() throws IOException {
+        for (Tinder shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    public void sendMessage(String senderId, String receiverId, String message){
+        pairShard(senderId, receiverId).sendMessage(senderId, receiverId, message);
+    }
+
+    public void displayChatRoom(String userId1, String userId2){
+        pairShard(userId1, userId2).displayChatRoom(userId1, userId2);
+    }
+
+    private Tinder pairShard(String userId1, String userId2){
+        return shards[Math.floorMod(ChatRoomIndex.pairKey(userId1, userId2).hashCode(), shards.length)];
+    }
+
+    private int shardFor(Location location){
+        return shardOfCell(latIndex(location.getLatitude()), lonIndex(location.getLongitude()));
+    }
+
+    private int shardOfCell(int lat, int lon){
+        long cell = (long) lat * lonCells + lon;
+        return Math.floorMod(Long.hashCode(cell * 0x9E3779B97F4A7C15L), shards.length);
+    }
+
+    // Shards owning any cell in the bounding box of the search circle
+    private Set<Integer> shardsWithin(Location location, double maxDistance){
+        double dLat = maxDistance / (GeoDistance.EARTH_RADIUS_KM * Math.PI / 180.0);
+        double minLat = Math.max(-90.0, location.getLatitude() - dLat);
+        double maxLat = Math.min(90.0, location.getLatitude() + dLat);
+        double cosLat = Math.cos(Math.toRadians(Math.max(Math.abs(minLat), Math.abs(maxLat))));
+        double dLon = cosLat > 1e-6 ? dLat / cosLat : 360.0;
+
+        int fromLon = (int) Math.floor((location.getLongitude() - dLon + 180.0) / cellSizeDeg);
+        int lonSpan = Math.min(lonCells, (int) Math.floor((location.getLongitude() + dLon + 180.0) / cellSizeDeg) - fromLon + 1);
+
+        Set<Integer> result = new HashSet<>();
+        for (int lat = latIndex(minLat); lat <= latIndex(maxLat) && result.size() < shards.length; lat++) {
+            for (int i = 0; i < lonSpan && result.size() < shards.length; i++) {
+                result.add(shardOfCell(lat, Math.floorMod(fromLon + i, lonCells)));
+            }
+        }
+        return result;
+    }
+
+    private int latIndex(double latitude){
+        return (int) Math.floor((latitude + 90.0) / cellSizeDeg);
+    }
+
+    private int lonIndex(double longitude){
+        return Math.floorMod((int) Math.floor((longitude + 180.0) / cellSizeDeg), lonCells);
+    }
+}
+
 // ----------------------- Main ----------------------------
 
 class Main {
@@ -808,7 +4139,416 @@ class Main {
         tinder.sendMessage("user2", "user1", "Hi Rohan, Ma bdiya tum btao");
 
         tinder.displayChatRoom("user1", "user2");
+
+        try {
+            tinder.shutdown();
+        } catch (IOException e) {
+            System.out.println("Shutdown failed: " + e.getMessage());
+        }
+    }
+}
+
+
+
+
+// ----------------------- Benchmarks ----------------------------
+
+// Synthetic users for benchmarks: uniform locations in a square of spreadKm around a center,
+// random gender/age/preferences and interestsPerUser interests drawn from interestCardinality names
+class PopulationGenerator {
+    private int interestCardinality;
+    private int interestsPerUser;
+    private double spreadKm;
+    private double centerLatitude;
+    private double centerLongitude;
+    private Random random;
+
+    public PopulationGenerator(int interestCardinality, int interestsPerUser, double spreadKm, long seed){
+        this.interestCardinality = interestCardinality;
+        this.interestsPerUser = interestsPerUser;
+        this.spreadKm = spreadKm;
+        this.centerLatitude = 28.6;
+        this.centerLongitude = 77.2;
+        this.random = new Random(seed);
+    }
+
+    public ArrayList<User> generate(String prefix, int count){
+        ArrayList<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = new User(prefix + i);
+            NotificationService.getInstance().removeObserver(user.getId());
+            fill(user);
+            users.add(user);
+        }
+        return users;
+    }
+
+    public ArrayList<User> populate(Tinder tinder, String prefix, int count){
+        ArrayList<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = tinder.createUser(prefix + i);
+            NotificationService.getInstance().removeObserver(user.getId());
+            fill(user);
+            users.add(user);
+        }
+        return users;
+    }
+
+    public ArrayList<User> populate(ShardedTinder tinder, String prefix, int count){
+        ArrayList<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = tinder.createUser(prefix + i);
+            NotificationService.getInstance().removeObserver(user.getId());
+            fill(user);
+            users.add(user);
+        }
+        return users;
+    }
+
+    public Random getRandom(){
+        return random;
+    }
+
+    private void fill(User user){
+        Gender[] genders = Gender.values();
+        UserProfile profile = user.getUserProfile();
+        profile.setAge(18 + random.nextInt(40));
+        profile.setGender(random.nextInt(10) < 9 ? genders[random.nextInt(2)] : genders[2 + random.nextInt(2)]);
+        for (int i = 0; i < interestsPerUser; i++) {
+            profile.addInterest(new Interest("interest" + random.nextInt(interestCardinality), "bench"));
+        }
+        double degrees = spreadKm / (GeoDistance.EARTH_RADIUS_KM * Math.PI / 180.0);
+        profile.setLocation(new Location(centerLatitude + (random.nextDouble() - 0.5) * degrees,
+            centerLongitude + (random.nextDouble() - 0.5) * degrees));
+
+        Preference preference = user.getPreference();
+        preference.addGenderPreference(genders[random.nextInt(2)]);
+        if (random.nextBoolean()) {
+            preference.addGenderPreference(genders[random.nextInt(genders.length)]);
+        }
+        int minAge = 18 + random.nextInt(15);
+        preference.setAgeRange(minAge, minAge + 5 + random.nextInt(20));
+        preference.setMaxDistance(5 + random.nextInt(46));
+    }
+}
+
+// Latency samples plus the bytes the measuring thread allocated while taking them
+class BenchmarkResult {
+    private static final com.sun.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean
+        ? (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean() : null;
+
+    private String name;
+    private long[] samples;
+    private int count;
+    private long startBytes;
+    private long allocatedBytes;
+
+    public BenchmarkResult(String name, int expectedSamples){
+        this.name = name;
+        this.samples = new long[expectedSamples];
+        this.count = 0;
+        this.startBytes = allocatedBytes();
+    }
+
+    public void record(long nanos){
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    public BenchmarkResult finish(){
+        allocatedBytes = allocatedBytes() - startBytes;
+        Arrays.sort(samples, 0, count);
+        return this;
+    }
+
+    public long percentile(double p){
+        if (count == 0) {
+            return 0;
+        }
+        return samples[Math.min(count - 1, (int) Math.ceil(p / 100.0 * count) - 1)];
+    }
+
+    public void print(){
+        System.out.printf("  %-34s n=%-7d p50=%8.1fus p90=%8.1fus p99=%8.1fus max=%8.1fus alloc=%s%n",
+            name, count, percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0,
+            percentile(100) / 1000.0, THREADS == null ? "n/a" : (allocatedBytes / Math.max(1, count)) + " B/op");
+    }
+
+    private static long allocatedBytes(){
+        return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
     }
 }
 
+// Benchmarks for the matching pipeline. Arguments are key=value pairs:
+//   users (default 100000), interests (interest name cardinality, 200), perUser (interests per
+//   user, 5), spreadKm (side of the populated square, 200), queries (1000), seconds (2 per matcher),
+//   metrics (true to run with TinderMetrics enabled and print them at the end, false)
+// Example: java TinderBenchmarkSuite users=1000000 spreadKm=500
+class TinderBenchmarkSuite {
+    private static volatile double sink;
 
+    public static void main(String[] args) {
+        HashMap<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length == 2) {
+                options.put(parts[0], parts[1]);
+            }
+        }
+        int users = Integer.parseInt(options.getOrDefault("users", "100000"));
+        int interests = Integer.parseInt(options.getOrDefault("interests", "200"));
+        int perUser = Integer.parseInt(options.getOrDefault("perUser", "5"));
+        double spreadKm = Double.parseDouble(options.getOrDefault("spreadKm", "200"));
+        int queries = Integer.parseInt(options.getOrDefault("queries", "1000"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "2"));
+        boolean metrics = Boolean.parseBoolean(options.getOrDefault("metrics", "false"));
+        TinderMetrics.getInstance().setEnabled(metrics);
+
+        System.out.println("Population: users=" + users + " interests=" + interests + " perUser=" + perUser + " spreadKm=" + spreadKm);
+        PopulationGenerator generator = new PopulationGenerator(interests, perUser, spreadKm, 42);
+        ArrayList<User> population = generator.populate(Tinder.getInstance(), "bench", users);
+        Random random = generator.getRandom();
+
+        System.out.println("Matcher throughput:");
+        for (MatcherType type : MatcherType.values()) {
+            benchmarkMatcher(type, population, random, seconds);
+        }
+
+        System.out.println("Location strategies (radius 25km):");
+        benchmarkStrategy("BasicLocationStrategy", new BasicLocationStrategy(), population, random, queries);
+        benchmarkStrategy("GridLocationStrategy", new GridLocationStrategy(25.0), population, random, queries);
+
+        System.out.println("Tinder.findNearbyUsers (radius 25km, top 50):");
+        benchmarkDiscovery(population, random, queries);
+
+        if (metrics) {
+            new ConsoleMetricsReporter().report(TinderMetrics.getInstance().snapshot());
+        }
+    }
+
+    private static void benchmarkMatcher(MatcherType type, ArrayList<User> population, Random random, int seconds){
+        Matcher matcher = MatcherFactory.createMatcher(type);
+        int pairs = 1 << 16;
+        User[] left = new User[pairs];
+        User[] right = new User[pairs];
+        for (int i = 0; i < pairs; i++) {
+            left[i] = population.get(random.nextInt(population.size()));
+            right[i] = population.get(random.nextInt(population.size()));
+        }
+
+        // Warm-up pass, then measure for the requested duration
+        double total = 0;
+        for (int i = 0; i < pairs * 4; i++) {
+            total += matcher.CalculateMatchScore(left[i & (pairs - 1)], right[i & (pairs - 1)]);
+        }
+        BenchmarkResult result = new BenchmarkResult(type + " batch of " + pairs, 64);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long operations = 0;
+        while (System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            for (int i = 0; i < pairs; i++) {
+                total += matcher.CalculateMatchScore(left[i], right[i]);
+            }
+            result.record(System.nanoTime() - start);
+            operations += pairs;
+        }
+        sink = total;
+        result.finish().print();
+        System.out.printf("  %-34s %.2f M scores/s%n", "", operations / (seconds * 1e6));
+    }
+
+    private static void benchmarkStrategy(String name, LocationStrategy strategy, ArrayList<User> population, Random random, int queries){
+        strategy.findNearbyUsers(population.get(0).getUserProfile().getLocation(), 25.0, population);
+        for (int i = 0; i < Math.min(queries, 100); i++) {
+            strategy.findNearbyUsers(population.get(random.nextInt(population.size())).getUserProfile().getLocation(), 25.0, population);
+        }
+
+        BenchmarkResult result = new BenchmarkResult(name, queries);
+        long found = 0;
+        for (int i = 0; i < queries; i++) {
+            Location location = population.get(random.nextInt(population.size())).getUserProfile().getLocation();
+            long start = System.nanoTime();
+            found += strategy.findNearbyUsers(location, 25.0, population).size();
+            result.record(System.nanoTime() - start);
+        }
+        sink = found;
+        result.finish().print();
+        // Detach an indexing strategy from the population, which later benchmarks reuse
+        for (User user : population) {
+            strategy.onUserRemoved(user);
+        }
+    }
+
+    private static void benchmarkDiscovery(ArrayList<User> population, Random random, int queries){
+        Tinder tinder = Tinder.getInstance();
+        LocationService.getInstance().setStrategy(new GridLocationStrategy(25.0));
+
+        ArrayList<String> userIds = new ArrayList<>();
+        for (int i = 0; i < queries; i++) {
+            userIds.add(population.get(random.nextInt(population.size())).getId());
+        }
+
+        BenchmarkResult cold = new BenchmarkResult("cold (feed not cached)", queries);
+        long found = 0;
+        for (String userId : userIds) {
+            long start = System.nanoTime();
+            found += tinder.findNearbyUsers(userId, 25.0, 50).size();
+            cold.record(System.nanoTime() - start);
+        }
+        cold.finish().print();
+
+        BenchmarkResult warm = new BenchmarkResult("warm (feed cached)", queries);
+        for (String userId : userIds) {
+            long start = System.nanoTime();
+            found += tinder.findNearbyUsers(userId, 25.0, 50).size();
+            warm.record(System.nanoTime() - start);
+        }
+        warm.finish().print();
+        sink = found;
+    }
+}
+
+// Compares the grid index against a full scan at 10k/100k/1M users
+class LocationStrategyBenchmark {
+    private static final int QUERIES = 200;
+    private static final double RADIUS_KM = 10.0;
+
+    public static void main(String[] args) {
+        int[] populations = {10_000, 100_000, 1_000_000};
+        for (int population : populations) {
+            run(population);
+        }
+    }
+
+    private static void run(int population) {
+        PopulationGenerator generator = new PopulationGenerator(100, 0, 500.0, 42);
+        ArrayList<User> users = generator.generate("bench" + population + "_", population);
+        Random random = generator.getRandom();
+
+        BasicLocationStrategy basic = new BasicLocationStrategy();
+        GridLocationStrategy grid = new GridLocationStrategy(RADIUS_KM);
+
+        long buildStart = System.nanoTime();
+        grid.findNearbyUsers(users.get(0).getUserProfile().getLocation(), RADIUS_KM, users);
+        long buildNanos = System.nanoTime() - buildStart;
+
+        // First round warms up the JIT and is discarded
+        BenchmarkResult basicResult = null;
+        BenchmarkResult gridResult = null;
+        long basicFound = 0;
+        long gridFound = 0;
+        Location[] queries = new Location[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queries[i] = users.get(random.nextInt(population)).getUserProfile().getLocation();
+        }
+        for (int round = 0; round < 2; round++) {
+            basicResult = new BenchmarkResult("BasicLocationStrategy", QUERIES);
+            basicFound = 0;
+            for (Location query : queries) {
+                long start = System.nanoTime();
+                basicFound += basic.findNearbyUsers(query, RADIUS_KM, users).size();
+                basicResult.record(System.nanoTime() - start);
+            }
+            basicResult.finish();
+
+            gridResult = new BenchmarkResult("GridLocationStrategy", QUERIES);
+            gridFound = 0;
+            for (Location query : queries) {
+                long start = System.nanoTime();
+                gridFound += grid.findNearbyUsers(query, RADIUS_KM, users).size();
+                gridResult.record(System.nanoTime() - start);
+            }
+            gridResult.finish();
+        }
+
+        System.out.println("Users: " + population + " (grid build " + (buildNanos / 1_000_000) + " ms, matches basic="
+            + basicFound + " grid=" + gridFound + ")");
+        basicResult.print();
+        gridResult.print();
+    }
+}
+
+// Runs a multi-shard deployment in one process next to a single unsharded shard built from the
+// same seeded population, and checks that both return the same feeds and that swipes across
+// shard boundaries still create exactly one match.
+// Usage: java ShardedTinderHarness [shards=4] [users=20000] [cellKm=5] [radiusKm=10] [queries=200]
+class ShardedTinderHarness {
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length == 2) {
+                options.put(parts[0], parts[1]);
+            }
+        }
+        int shardCount = Integer.parseInt(options.getOrDefault("shards", "4"));
+        int userCount = Integer.parseInt(options.getOrDefault("users", "20000"));
+        double cellKm = Double.parseDouble(options.getOrDefault("cellKm", "5"));
+        double radiusKm = Double.parseDouble(options.getOrDefault("radiusKm", "10"));
+        int queries = Integer.parseInt(options.getOrDefault("queries", "200"));
+
+        ShardedTinder sharded = new ShardedTinder(shardCount, cellKm);
+        Tinder reference = Tinder.newShard();
+        ArrayList<User> shardedUsers = new PopulationGenerator(200, 8, 60, 7L).populate(sharded, "h", userCount);
+        new PopulationGenerator(200, 8, 60, 7L).populate(reference, "h", userCount);
+
+        for (int i = 0; i < shardCount; i++) {
+            System.out.println("Shard " + i + ": " + sharded.getShardSize(i) + " users");
+        }
+
+        Random random = new Random(11L);
+        int mismatches = 0;
+        long shardedNanos = 0;
+        long referenceNanos = 0;
+        for (int q = 0; q < queries; q++) {
+            String userId = shardedUsers.get(random.nextInt(userCount)).getId();
+            long start = System.nanoTime();
+            ArrayList<ScoredUser> shardedFeed = sharded.getRankedFeed(userId, radiusKm, Integer.MAX_VALUE);
+            shardedNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            ArrayList<ScoredUser> referenceFeed = reference.getRankedFeed(userId, radiusKm, Integer.MAX_VALUE);
+            referenceNanos += System.nanoTime() - start;
+            if (!idsOf(shardedFeed).equals(idsOf(referenceFeed))) {
+                mismatches++;
+            }
+        }
+        System.out.printf("Feeds: %d queries, %d mismatches, sharded %.3f ms/query, single %.3f ms/query%n",
+            queries, mismatches, shardedNanos / 1e6 / queries, referenceNanos / 1e6 / queries);
+
+        int crossShardPairs = 0;
+        int rooms = 0;
+        for (int i = 0; i + 1 < userCount && crossShardPairs < 100; i += 2) {
+            String a = shardedUsers.get(i).getId();
+            String b = shardedUsers.get(i + 1).getId();
+            if (sharded.getShardOf(a) == sharded.getShardOf(b)) {
+                continue;
+            }
+            crossShardPairs++;
+            sharded.swipe(a, b, SwipeAction.RIGHT);
+            sharded.swipe(b, a, SwipeAction.RIGHT);
+            if (sharded.getChatRoom(a, b) != null) {
+                rooms++;
+            }
+        }
+        System.out.println("Cross-shard matches: " + rooms + "/" + crossShardPairs);
+
+        User mover = shardedUsers.get(0);
+        int before = sharded.getShardOf(mover.getId());
+        mover.getUserProfile().setLocation(new Location(19.07, 72.87));
+        System.out.println("Migration: shard " + before + " -> " + sharded.getShardOf(mover.getId())
+            + ", still reachable: " + (sharded.getUserById(mover.getId()) == mover));
+
+        boolean ok = mismatches == 0 && rooms == crossShardPairs;
+        System.out.println(ok ? "PASS" : "FAIL");
+    }
+
+    private static Set<String> idsOf(ArrayList<ScoredUser> feed) {
+        Set<String> ids = new HashSet<>();
+        for (ScoredUser scored : feed) {
+            ids.add(scored.getUser().getId());
+        }
+        return ids;
+    }
+}
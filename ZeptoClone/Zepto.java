@@ -1,14 +1,41 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 // //////////////////////////////////////////
 // Product and Factory
 // /////////////////////////////////////////
 
+// Immutable; a price change replaces the catalog's instance rather than mutating it
 class Product {
-    private int sku;
-    private String name;
-    private double price;
+    private final int sku;
+    private final String name;
+    private final double price;
 
     public Product(int sku, String name, double price){
         this.name = name;
@@ -29,34 +56,230 @@ class Product {
     }
 }
 
-class ProductFactory{
+interface PriceListener {
+    // Called after a price change is visible to readers of the catalog
+    public void onPriceChanged(Product previous, Product current);
+}
 
-    public static Product createProduct(int sku){
-        String name;
-        double price;
+// Every known product as one shared instance per SKU, loaded at startup from a "sku,name,price"
+// file (the zepto.products system property, else products.csv in the working directory) or the
+// built-in defaults when there is none. Lookups read an immutable open-addressing table; any
+// change builds a new table and publishes it in one step, so readers see all of a price update
+// or none of it. SKUs missing from the file read as "Item<sku>" at Rs100 without joining the
+// table; up to MAX_DEFAULTS of those are shared from a side map, the rest are made per lookup.
+class ProductCatalog {
+    private static final double DEFAULT_PRICE = 100;
+    private static final int MAX_DEFAULTS = 10_000;
+
+    private AtomicReference<Table> table;
+    private ConcurrentHashMap<Integer, Product> defaultProducts;
+    private CopyOnWriteArrayList<PriceListener> listeners;
+
+    private ProductCatalog(){
+        table = new AtomicReference<>(new Table(16));
+        defaultProducts = new ConcurrentHashMap<>();
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+    // Every product lookup comes through here, so the instance is created once by class
+    // initialization instead of behind a lock
+    public static ProductCatalog getInstance(){
+        return Holder.INSTANCE;
+    }
+
+    private static class Holder {
+        static final ProductCatalog INSTANCE = create();
+
+        private static ProductCatalog create(){
+            ProductCatalog catalog = new ProductCatalog();
+            catalog.load(Paths.get(System.getProperty("zepto.products", "products.csv")));
+            return catalog;
+        }
+    }
+
+    public void addListener(PriceListener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(PriceListener listener){
+        listeners.remove(listener);
+    }
+
+    public Product get(int sku){
+        Product product = table.get().find(sku);
+        return product != null ? product : defaultProduct(sku);
+    }
+
+    public boolean contains(int sku){
+        return table.get().find(sku) != null;
+    }
+
+    public int size(){
+        return table.get().size;
+    }
+
+    public void updatePrice(int sku, double price){
+        HashMap<Integer, Double> prices = new HashMap<>();
+        prices.put(sku, price);
+        updatePrices(prices);
+    }
+
+    // All of the new prices become visible together
+    public void updatePrices(HashMap<Integer, Double> prices){
+        for (double price : prices.values()) {
+            if (price < 0 || Double.isNaN(price)) {
+                throw new IllegalArgumentException("Invalid price " + price);
+            }
+        }
+        ArrayList<Product> previous = new ArrayList<>();
+        ArrayList<Product> current = new ArrayList<>();
+        synchronized (this) {
+            Table existing = table.get();
+            for (int sku : prices.keySet()) {
+                Product old = existing.find(sku);
+                if (old == null) {
+                    old = defaultProducts.get(sku);
+                }
+                previous.add(old);
+                current.add(new Product(sku, old != null ? old.getName() : defaultName(sku), prices.get(sku)));
+            }
+            table.set(existing.withAll(current));
+            defaultProducts.keySet().removeAll(prices.keySet());
+        }
+        for (int i = 0; i < current.size(); i++) {
+            System.out.println("[Product Catalog] SKU" + current.get(i).getsku() + " now Rs" + current.get(i).getPrice());
+            for (PriceListener listener : listeners) {
+                listener.onPriceChanged(previous.get(i), current.get(i));
+            }
+        }
+    }
+
+    // Replaces the catalog with the file's contents, or the defaults if the file does not exist
+    public synchronized void load(Path file){
+        ArrayList<Product> products = Files.isRegularFile(file) ? readFile(file) : defaults();
+        Table next = new Table(16).withAll(products);
+        table.set(next);
+        defaultProducts.clear();
+        System.out.println("[Product Catalog] Loaded " + next.size + " products"
+                + (Files.isRegularFile(file) ? " from " + file : " (defaults)"));
+    }
+
+    // Unknown SKUs never grow the table, so a stream of misses costs at most MAX_DEFAULTS entries
+    private Product defaultProduct(int sku){
+        Product product = defaultProducts.get(sku);
+        if (product != null) {
+            return product;
+        }
+        product = new Product(sku, defaultName(sku), DEFAULT_PRICE);
+        if (defaultProducts.size() >= MAX_DEFAULTS) {
+            return product;
+        }
+        Product raced = defaultProducts.putIfAbsent(sku, product);
+        return raced != null ? raced : product;
+    }
+
+    private static String defaultName(int sku){
+        return "Item" + Integer.toString(sku);
+    }
+
+    private static ArrayList<Product> defaults(){
+        ArrayList<Product> products = new ArrayList<>();
+        products.add(new Product(101, "Apple", 20));
+        products.add(new Product(102, "Banana", 10));
+        products.add(new Product(103, "Chocolate", 50));
+        products.add(new Product(201, "T-Shirt", 500));
+        products.add(new Product(202, "Jeans", 1000));
+        return products;
+    }
+
+    // Blank lines, lines starting with '#' and a "sku,name,price" header are skipped
+    private static ArrayList<Product> readFile(Path file){
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read product catalog " + file, e);
+        }
+        ArrayList<Product> products = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#") || line.equalsIgnoreCase("sku,name,price")) {
+                continue;
+            }
+            String[] fields = line.split(",");
+            try {
+                if (fields.length != 3 || Double.parseDouble(fields[2].trim()) < 0) {
+                    throw new NumberFormatException();
+                }
+                products.add(new Product(Integer.parseInt(fields[0].trim()), fields[1].trim(), Double.parseDouble(fields[2].trim())));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(file + ":" + (i + 1) + ": expected sku,name,price but got \"" + line + "\"");
+            }
+        }
+        return products;
+    }
+
+    // SKU -> product, open addressing with null as the empty slot; only filled before it is
+    // published, then never changed
+    private static class Table {
+        final int[] skus;
+        final Product[] products;
+        int size;
+
+        Table(int capacity){
+            this.skus = new int[capacity];
+            this.products = new Product[capacity];
+        }
+
+        Product find(int sku){
+            return products[slotOf(sku)];
+        }
 
+        // One copy, sized up front for every addition, with later products replacing earlier
+        // ones for the same SKU
+        Table withAll(List<Product> additions){
+            int capacity = skus.length;
+            while ((size + additions.size()) * 2 > capacity) {
+                capacity <<= 1;
+            }
+            Table next = new Table(capacity);
+            for (int i = 0; i < products.length; i++) {
+                if (products[i] != null) {
+                    next.place(products[i]);
+                }
+            }
+            for (Product product : additions) {
+                next.place(product);
+            }
+            return next;
+        }
+
+        private int slotOf(int sku){
+            int mask = skus.length - 1;
+            int hash = sku * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (products[slot] != null && skus[slot] != sku) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
 
-        if (sku == 101) {
-            name = "Apple";
-            price = 20;
-        }else if(sku == 102){
-            name = "Banana";
-            price = 10;
-        }else if (sku == 103){
-            name = "Chocolate";
-            price = 50;
-        }else if(sku == 201){
-            name = "T-Shirt";
-            price = 500;
-        }else if (sku == 202){
-            name = "Jeans";
-            price = 1000;
-        }else{
-            name = "Item" + Integer.toString(sku);
-            price = 100;
+        private void place(Product product){
+            int slot = slotOf(product.getsku());
+            if (products[slot] == null) {
+                size++;
+            }
+            skus[slot] = product.getsku();
+            products[slot] = product;
         }
+    }
+}
+
+class ProductFactory{
 
-        return new Product(sku, name, price);
+    // Kept for existing callers; products are shared catalog instances, not new objects
+    public static Product createProduct(int sku){
+        return ProductCatalog.getInstance().get(sku);
     }
 }
 
@@ -69,6 +292,20 @@ interface InventoryStore {
     public void removeProduct(int sku, int qty);
     public int checkStock(int sku);
     public ArrayList<Product> listAvailaibleProducts();
+    // Removes qty only if that much is in stock, as one atomic step; qty must be positive
+    public boolean tryReserve(int sku, int qty);
+    // Returns previously reserved qty to stock; qty must be positive
+    public void release(int sku, int qty);
+    // Adds qty on top of the current stock as one atomic step; qty must be positive
+    public void restock(Product prod, int qty);
+    // Raises stock to target if it is below, as one atomic step; returns the units added
+    public int topUp(Product prod, int target);
+
+    public static void requirePositive(int qty) {
+        if (qty <= 0) {
+            throw new IllegalArgumentException("Quantity must be positive, got " + qty);
+        }
+    }
 }
 
 class DBInventoryStore implements InventoryStore {
@@ -82,7 +319,7 @@ class DBInventoryStore implements InventoryStore {
 
 
     @Override
-    public void addProduct(Product prod, int qty) {
+    public synchronized void addProduct(Product prod, int qty) {
         int sku = prod.getsku();
         if (!products.containsKey(sku)) {
             products.put(sku, prod);
@@ -91,7 +328,7 @@ class DBInventoryStore implements InventoryStore {
     }
 
     @Override
-    public void removeProduct(int sku, int qty) {
+    public synchronized void removeProduct(int sku, int qty) {
         if (!stock.containsKey(sku)) {
             return;
         }
@@ -105,7 +342,7 @@ class DBInventoryStore implements InventoryStore {
     }
 
     @Override
-    public int checkStock(int sku) {
+    public synchronized int checkStock(int sku) {
         if (!stock.containsKey(sku)) {
             return 0;
         }
@@ -114,46 +351,311 @@ class DBInventoryStore implements InventoryStore {
     }
 
     @Override
-    public ArrayList<Product> listAvailaibleProducts() {
+    public synchronized ArrayList<Product> listAvailaibleProducts() {
         ArrayList<Product> availaible = new ArrayList<>();
         for(int sku : stock.keySet()){
             int qty = stock.get(sku);
             if (qty > 0 && products.containsKey(sku)) {
-                availaible.add(products.get(sku));
+                availaible.add(ProductCatalog.getInstance().get(sku));
+            }
+        }
+        return availaible;
+    }
+
+    @Override
+    public synchronized boolean tryReserve(int sku, int qty) {
+        InventoryStore.requirePositive(qty);
+        if (checkStock(sku) < qty) {
+            return false;
+        }
+        removeProduct(sku, qty);
+        return true;
+    }
+
+    @Override
+    public synchronized void release(int sku, int qty) {
+        InventoryStore.requirePositive(qty);
+        if (products.containsKey(sku)) {
+            stock.merge(sku, qty, Integer::sum);
+        }
+    }
+
+    @Override
+    public synchronized void restock(Product prod, int qty) {
+        InventoryStore.requirePositive(qty);
+        products.putIfAbsent(prod.getsku(), prod);
+        stock.merge(prod.getsku(), qty, Integer::sum);
+    }
+
+    @Override
+    public synchronized int topUp(Product prod, int target) {
+        int added = target - checkStock(prod.getsku());
+        if (added <= 0) {
+            return 0;
+        }
+        restock(prod, added);
+        return added;
+    }
+}
+
+// Lock-free stock counters for concurrent order placement. SKUs are spread over stripes, each an
+// open-addressing int table of AtomicInteger counters. Stock changes are CAS operations on the
+// counter; only the first sight of a SKU takes the stripe's lock and republishes its table.
+// Product details are not kept here; listings read them from the ProductCatalog.
+class ConcurrentInventoryStore implements InventoryStore {
+    private Stripe[] stripes;
+    private int stripeShift;
+
+    public ConcurrentInventoryStore(){
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public ConcurrentInventoryStore(int concurrency){
+        int count = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeShift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    @Override
+    public void addProduct(Product prod, int qty) {
+        counterFor(prod).set(Math.max(0, qty));
+    }
+
+    @Override
+    public void removeProduct(int sku, int qty) {
+        AtomicInteger counter = stripeOf(sku).find(sku);
+        if (counter != null) {
+            counter.updateAndGet(current -> Math.max(0, current - qty));
+        }
+    }
+
+    @Override
+    public int checkStock(int sku) {
+        AtomicInteger counter = stripeOf(sku).find(sku);
+        return counter == null ? 0 : counter.get();
+    }
+
+    @Override
+    public ArrayList<Product> listAvailaibleProducts() {
+        ArrayList<Product> availaible = new ArrayList<>();
+        ProductCatalog catalog = ProductCatalog.getInstance();
+        for (Stripe stripe : stripes) {
+            Table table = stripe.table;
+            for (int i = 0; i < table.counters.length; i++) {
+                if (table.counters[i] != null && table.counters[i].get() > 0) {
+                    availaible.add(catalog.get(table.skus[i]));
+                }
             }
         }
         return availaible;
     }
+
+    @Override
+    public boolean tryReserve(int sku, int qty) {
+        InventoryStore.requirePositive(qty);
+        AtomicInteger counter = stripeOf(sku).find(sku);
+        if (counter == null) {
+            return false;
+        }
+        while (true) {
+            int current = counter.get();
+            if (current < qty) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current - qty)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public void release(int sku, int qty) {
+        InventoryStore.requirePositive(qty);
+        AtomicInteger counter = stripeOf(sku).find(sku);
+        if (counter != null) {
+            counter.addAndGet(qty);
+        }
+    }
+
+    @Override
+    public void restock(Product prod, int qty) {
+        InventoryStore.requirePositive(qty);
+        counterFor(prod).addAndGet(qty);
+    }
+
+    @Override
+    public int topUp(Product prod, int target) {
+        AtomicInteger counter = counterFor(prod);
+        while (true) {
+            int current = counter.get();
+            if (current >= target) {
+                return 0;
+            }
+            if (counter.compareAndSet(current, target)) {
+                return target - current;
+            }
+        }
+    }
+
+    private AtomicInteger counterFor(Product prod) {
+        Stripe stripe = stripeOf(prod.getsku());
+        AtomicInteger counter = stripe.find(prod.getsku());
+        return counter != null ? counter : stripe.insert(prod.getsku());
+    }
+
+    private Stripe stripeOf(int sku) {
+        return stripes[(sku * 0x9E3779B9) >>> stripeShift];
+    }
+
+    // Immutable once published; a new SKU copies the table
+    private static class Table {
+        final int[] skus;
+        final AtomicInteger[] counters;
+        final int size;
+
+        Table(int capacity, int size) {
+            this.skus = new int[capacity];
+            this.counters = new AtomicInteger[capacity];
+            this.size = size;
+        }
+
+        int slotOf(int sku) {
+            int mask = skus.length - 1;
+            int hash = sku * 0x85EBCA6B;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (counters[slot] != null && skus[slot] != sku) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    private static class Stripe {
+        volatile Table table = new Table(8, 0);
+
+        AtomicInteger find(int sku) {
+            Table current = table;
+            return current.counters[current.slotOf(sku)];
+        }
+
+        synchronized AtomicInteger insert(int sku) {
+            AtomicInteger existing = find(sku);
+            if (existing != null) {
+                return existing;
+            }
+            Table current = table;
+            int capacity = current.skus.length;
+            while ((current.size + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+            Table next = new Table(capacity, current.size + 1);
+            for (int i = 0; i < current.counters.length; i++) {
+                if (current.counters[i] != null) {
+                    place(next, current.skus[i], current.counters[i]);
+                }
+            }
+            AtomicInteger counter = new AtomicInteger();
+            place(next, sku, counter);
+            table = next;
+            return counter;
+        }
+
+        private static void place(Table table, int sku, AtomicInteger counter) {
+            int slot = table.slotOf(sku);
+            table.skus[slot] = sku;
+            table.counters[slot] = counter;
+        }
+    }
 }
 
 // /////////////////////////////////////////////
 // Inventory Manager
 // ////////////////////////////////////////////
 
+interface InventoryListener {
+    // Called after any change to a SKU's stock; read the new quantity from the store
+    public void onStockChanged(DarkStore store, int sku);
+}
+
 class InventoryManager {
     private InventoryStore store;
+    private DarkStore owner;
+    private CopyOnWriteArrayList<InventoryListener> listeners;
 
     public InventoryManager(InventoryStore store){
+        this(store, null);
+    }
+
+    public InventoryManager(InventoryStore store, DarkStore owner){
         this.store = store;
+        this.owner = owner;
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    public void addListener(InventoryListener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(InventoryListener listener){
+        listeners.remove(listener);
     }
 
     public void addStock(int sku, int qty){
-        Product prod = ProductFactory.createProduct(sku);
-        store.addProduct(prod, qty);
+        store.addProduct(ProductCatalog.getInstance().get(sku), qty);
         System.out.println("[Inventory Manager] Added SKU" + sku + " Qty " + qty);
+        notifyStockChanged(sku);
     }
 
     public void removeStock(int sku, int qty){
         store.removeProduct(sku, qty);
+        notifyStockChanged(sku);
+    }
+
+    // Unlike addStock these add to the stock, so units reserved meanwhile are not written over
+    public void restock(int sku, int qty){
+        store.restock(ProductCatalog.getInstance().get(sku), qty);
+        System.out.println("[Inventory Manager] Restocked SKU" + sku + " Qty " + qty);
+        notifyStockChanged(sku);
+    }
+
+    public int topUp(int sku, int target){
+        int added = store.topUp(ProductCatalog.getInstance().get(sku), target);
+        if (added > 0) {
+            System.out.println("[Inventory Manager] Restocked SKU" + sku + " Qty " + added);
+            notifyStockChanged(sku);
+        }
+        return added;
     }
 
     public int checkStock(int sku){
         return store.checkStock(sku);
     }
 
+    public boolean tryReserve(int sku, int qty){
+        if (!store.tryReserve(sku, qty)) {
+            return false;
+        }
+        notifyStockChanged(sku);
+        return true;
+    }
+
+    public void release(int sku, int qty){
+        store.release(sku, qty);
+        notifyStockChanged(sku);
+    }
+
     public ArrayList<Product> getAvailaibleProducts(){
         return store.listAvailaibleProducts();
     }
+
+    private void notifyStockChanged(int sku){
+        for (InventoryListener listener : listeners) {
+            listener.onStockChanged(owner, sku);
+        }
+    }
 }
 
 // /////////////////////////////////////////////
@@ -162,6 +664,11 @@ class InventoryManager {
 
 interface ReplenishStrategy {
     public void replenish(InventoryManager manager, HashMap<Integer, Integer> itemsToReplenish);
+
+    // Whether a stock change to sku should trigger a run before the next scheduled one
+    default boolean needsReplenishment(InventoryManager manager, int sku){
+        return false;
+    }
 }
 
 class ThresholdReplenishStrategy implements ReplenishStrategy{
@@ -178,18 +685,35 @@ class ThresholdReplenishStrategy implements ReplenishStrategy{
             int qty = itemsToReplenish.get(sku);
             int currentQty = manager.checkStock(sku);
             if (currentQty < threshold) {
-                manager.addStock(sku, qty);
+                manager.restock(sku, qty);
                 System.out.println("  -> SKU " + sku + " was " + currentQty + ", replenished by " + qty);
             }
         }
     }
+
+    @Override
+    public boolean needsReplenishment(InventoryManager manager, int sku) {
+        return manager.checkStock(sku) < threshold;
+    }
+
+    public int getThreshold(){
+        return this.threshold;
+    }
 }
 
 class WeeklyReplenishStrategy implements ReplenishStrategy {
 
+    // Tops every SKU up to its planned quantity, whatever its current stock
     @Override
     public void replenish(InventoryManager manager, HashMap<Integer, Integer> itemsToReplenish) {
         System.out.println("[WeeklyReplenish] Weekly replenishment triggered for inventory");
+        for(int sku : itemsToReplenish.keySet()){
+            int qty = itemsToReplenish.get(sku);
+            int added = manager.topUp(sku, qty);
+            if (added > 0) {
+                System.out.println("  -> SKU " + sku + " was " + (qty - added) + ", restocked to " + qty);
+            }
+        }
     }
 }
 
@@ -197,26 +721,41 @@ class DarkStore {
     private String name;
     private double x, y;
     InventoryManager inventoryManager;
-    ReplenishStrategy replenishStrategy;
+    volatile ReplenishStrategy replenishStrategy;
+    // SKU -> quantity used by scheduled replenishment; replaced as a whole, never mutated
+    private volatile HashMap<Integer, Integer> replenishmentPlan;
 
     public DarkStore(String n, double x_coord, double y_coord){
         this.name = n;
         this.x = x_coord;
         this.y = y_coord;
 
-        inventoryManager = new InventoryManager(new DBInventoryStore());
+        inventoryManager = new InventoryManager(new ConcurrentInventoryStore(), this);
+        replenishmentPlan = new HashMap<>();
     }
 
     public double distanceTo(double ux, double uy){
         return Math.sqrt((x - ux)*(x - ux) + (y - uy)*(y - uy));
     }
 
-    public void runReplenishment(HashMap<Integer, Integer> itemsToReplenish){
-        if (replenishStrategy != null) {
-            replenishStrategy.replenish(inventoryManager, itemsToReplenish);
+    // Synchronized so a scheduled run and a threshold-triggered run never interleave
+    public synchronized void runReplenishment(HashMap<Integer, Integer> itemsToReplenish){
+        ReplenishStrategy strategy = replenishStrategy;
+        if (strategy != null) {
+            strategy.replenish(inventoryManager, itemsToReplenish);
         }
     }
 
+    public void runReplenishment(){
+        runReplenishment(replenishmentPlan);
+    }
+
+    // True if a change to sku's stock should bring replenishment forward
+    public boolean needsReplenishment(int sku){
+        ReplenishStrategy strategy = replenishStrategy;
+        return strategy != null && replenishmentPlan.containsKey(sku) && strategy.needsReplenishment(inventoryManager, sku);
+    }
+
     public ArrayList<Product> getAllProducts(){
         return inventoryManager.getAvailaibleProducts();
     }
@@ -229,8 +768,28 @@ class DarkStore {
         inventoryManager.removeStock(sku, qty);
     }
 
+    public boolean tryReserve(int sku, int qty){
+        return inventoryManager.tryReserve(sku, qty);
+    }
+
+    public void releaseStock(int sku, int qty){
+        inventoryManager.release(sku, qty);
+    }
+
+    // Takes as much of qty as is in stock, retrying if another order changes the stock meanwhile
+    public int reserveUpTo(int sku, int qty){
+        while (true) {
+            int taken = Math.min(checkStock(sku), qty);
+            if (taken <= 0) {
+                return 0;
+            }
+            if (tryReserve(sku, taken)) {
+                return taken;
+            }
+        }
+    }
+
     public void addStock(int sku, int qty){
-        Product prod = ProductFactory.createProduct(sku);
         inventoryManager.addStock(sku, qty);
     }
 
@@ -238,6 +797,14 @@ class DarkStore {
         this.replenishStrategy = strategy;
     }
 
+    public void setReplenishmentPlan(HashMap<Integer, Integer> plan){
+        this.replenishmentPlan = new HashMap<>(plan);
+    }
+
+    public HashMap<Integer, Integer> getReplenishmentPlan(){
+        return new HashMap<>(this.replenishmentPlan);
+    }
+
     public String getName(){
         return this.name;
     }
@@ -269,40 +836,1031 @@ class Pair<U, V> {
     }
 }
 
-class DarkStoreManager {
-    private static DarkStoreManager instance;
-    private ArrayList<DarkStore> darkStores;
+// Immutable grid index over dark-store coordinates, rebuilt whenever a store registers. Cells
+// are kept as a sorted array of packed (cellX, cellY) keys with the store ids of each cell laid
+// out contiguously, so lookups are binary searches over primitives. Radius results for a user
+// are served from a per-cell cache holding every store that could be in range from anywhere in
+// that small cell; each query then only measures and orders that short candidate list.
+class DarkStoreIndex {
+    private static final int MAX_CACHED_CELLS = 100_000;
+
+    private DarkStore[] stores;
+    private double[] xs;
+    private double[] ys;
+    private double cellSize;
+    private long[] cellKeys;
+    private int[] cellStart;
+    private int[] cellStores;
+    private int minCellX, maxCellX, minCellY, maxCellY;
+    private double cacheCellSize;
+    private ConcurrentHashMap<CellQuery, int[]> candidateCache;
+
+    public DarkStoreIndex(ArrayList<DarkStore> darkStores, double cellSize){
+        int n = darkStores.size();
+        this.stores = darkStores.toArray(new DarkStore[0]);
+        this.xs = new double[n];
+        this.ys = new double[n];
+        this.cellSize = cellSize;
+        this.cacheCellSize = cellSize / 4;
+        this.candidateCache = new ConcurrentHashMap<>();
+
+        long[] keyed = new long[n];
+        long[] keys = new long[n];
+        minCellX = minCellY = Integer.MAX_VALUE;
+        maxCellX = maxCellY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            xs[i] = stores[i].getXCoordinate();
+            ys[i] = stores[i].getYCoordinate();
+            int cx = cellOf(xs[i]);
+            int cy = cellOf(ys[i]);
+            minCellX = Math.min(minCellX, cx);
+            maxCellX = Math.max(maxCellX, cx);
+            minCellY = Math.min(minCellY, cy);
+            maxCellY = Math.max(maxCellY, cy);
+            keys[i] = cellKey(cx, cy);
+        }
 
-    private DarkStoreManager(){
-        darkStores = new ArrayList<>();
+        // Group store ids by cell: sort ids by key, then record where each distinct key starts
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+        cellStores = new int[n];
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            cellStores[i] = order[i];
+            keyed[i] = keys[order[i]];
+            if (i == 0 || keyed[i] != keyed[i - 1]) {
+                distinct++;
+            }
+        }
+        cellKeys = new long[distinct];
+        cellStart = new int[distinct + 1];
+        for (int i = 0, cell = -1; i < n; i++) {
+            if (i == 0 || keyed[i] != keyed[i - 1]) {
+                cell++;
+                cellKeys[cell] = keyed[i];
+                cellStart[cell] = i;
+            }
+        }
+        cellStart[distinct] = n;
     }
 
-    public static DarkStoreManager getInstance(){
-        if (instance == null) {
-            instance = new DarkStoreManager();
+    public int size(){
+        return stores.length;
+    }
+
+    // Stores within radius, nearest first; ties keep registration order
+    public ArrayList<DarkStore> withinRadius(double ux, double uy, double radius){
+        int[] candidates = cachedCandidates(ux, uy, radius);
+        long[] packed = new long[candidates.length];
+        int count = 0;
+        for (int id : candidates) {
+            double distance = distance(id, ux, uy);
+            if (distance <= radius) {
+                packed[count++] = pack(distance, id);
+            }
+        }
+        Arrays.sort(packed, 0, count);
+        return toStores(packed, count);
+    }
+
+    // Up to k stores within maxDistance, nearest first, found by searching outward ring by ring
+    public ArrayList<DarkStore> nearest(double ux, double uy, int k, double maxDistance){
+        if (k <= 0 || stores.length == 0) {
+            return new ArrayList<>();
+        }
+        long[] best = new long[k];
+        int count = 0;
+        int ucx = cellOf(ux);
+        int ucy = cellOf(uy);
+        int maxRing = Math.max(Math.max(Math.abs(ucx - minCellX), Math.abs(ucx - maxCellX)),
+            Math.max(Math.abs(ucy - minCellY), Math.abs(ucy - maxCellY)));
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // Anything outside rings 0..ring-1 is at least (ring - 1) cells away
+            double ringDistance = (ring - 1) * cellSize;
+            if (ringDistance > maxDistance || (count == k && distanceOf(best[k - 1]) <= ringDistance)) {
+                break;
+            }
+            for (int cx = ucx - ring; cx <= ucx + ring; cx++) {
+                int step = (cx == ucx - ring || cx == ucx + ring) ? 1 : 2 * ring;
+                for (int cy = ucy - ring; cy <= ucy + ring; cy += Math.max(step, 1)) {
+                    int cell = Arrays.binarySearch(cellKeys, cellKey(cx, cy));
+                    if (cell < 0) {
+                        continue;
+                    }
+                    for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                        int id = cellStores[i];
+                        double distance = distance(id, ux, uy);
+                        if (distance > maxDistance) {
+                            continue;
+                        }
+                        long entry = pack(distance, id);
+                        if (count < k) {
+                            count = insertSorted(best, count, entry);
+                        } else if (entry < best[k - 1]) {
+                            insertSorted(best, k - 1, entry);
+                        }
+                    }
+                }
+            }
+        }
+        return toStores(best, count);
+    }
+
+    private int[] cachedCandidates(double ux, double uy, double radius){
+        int ccx = (int) Math.floor(ux / cacheCellSize);
+        int ccy = (int) Math.floor(uy / cacheCellSize);
+        CellQuery key = new CellQuery(cellKey(ccx, ccy), radius);
+        int[] candidates = candidateCache.get(key);
+        if (candidates == null) {
+            if (candidateCache.size() >= MAX_CACHED_CELLS) {
+                candidateCache.clear();
+            }
+            double halfDiagonal = cacheCellSize * Math.sqrt(0.5);
+            candidates = scan((ccx + 0.5) * cacheCellSize, (ccy + 0.5) * cacheCellSize, radius + halfDiagonal);
+            candidateCache.put(key, candidates);
+        }
+        return candidates;
+    }
+
+    // Every store within radius of (cx, cy), in no particular order
+    private int[] scan(double cx, double cy, double radius){
+        int fromX = cellOf(cx - radius), toX = cellOf(cx + radius);
+        int fromY = cellOf(cy - radius), toY = cellOf(cy + radius);
+        int[] found = new int[16];
+        int count = 0;
+        if ((long) (toX - fromX + 1) * (toY - fromY + 1) > stores.length) {
+            for (int id = 0; id < stores.length; id++) {
+                if (distance(id, cx, cy) <= radius) {
+                    found = append(found, count++, id);
+                }
+            }
+            return Arrays.copyOf(found, count);
+        }
+        for (int x = Math.max(fromX, minCellX); x <= Math.min(toX, maxCellX); x++) {
+            for (int y = Math.max(fromY, minCellY); y <= Math.min(toY, maxCellY); y++) {
+                int cell = Arrays.binarySearch(cellKeys, cellKey(x, y));
+                if (cell < 0) {
+                    continue;
+                }
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    if (distance(cellStores[i], cx, cy) <= radius) {
+                        found = append(found, count++, cellStores[i]);
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private ArrayList<DarkStore> toStores(long[] packed, int count){
+        ArrayList<DarkStore> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(stores[(int) packed[i]]);
+        }
+        return result;
+    }
+
+    private double distance(int id, double ux, double uy){
+        double dx = xs[id] - ux;
+        double dy = ys[id] - uy;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private int cellOf(double coordinate){
+        return (int) Math.floor(coordinate / cellSize);
+    }
+
+    private static long cellKey(int cx, int cy){
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    // Non-negative float bits order like the floats, so packed entries sort by distance, then id
+    private static long pack(double distance, int id){
+        return ((long) Float.floatToIntBits((float) distance) << 32) | id;
+    }
+
+    private static double distanceOf(long packed){
+        return Float.intBitsToFloat((int) (packed >>> 32));
+    }
+
+    private static int insertSorted(long[] sorted, int count, long entry){
+        int i = count;
+        while (i > 0 && sorted[i - 1] > entry) {
+            sorted[i] = sorted[i - 1];
+            i--;
+        }
+        sorted[i] = entry;
+        return count + 1;
+    }
+
+    private static int[] append(int[] array, int index, int value){
+        if (index == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+
+    private static class CellQuery {
+        private final long cell;
+        private final double radius;
+
+        CellQuery(long cell, double radius){
+            this.cell = cell;
+            this.radius = radius;
+        }
+
+        @Override
+        public boolean equals(Object other){
+            if (!(other instanceof CellQuery)) {
+                return false;
+            }
+            CellQuery query = (CellQuery) other;
+            return cell == query.cell && Double.compare(radius, query.radius) == 0;
+        }
+
+        @Override
+        public int hashCode(){
+            return Long.hashCode(cell) * 31 + Double.hashCode(radius);
+        }
+    }
+}
+
+class DarkStoreManager {
+    // Roughly the usual delivery radius, so a typical query touches a handful of cells
+    private static final double INDEX_CELL_SIZE = 5.0;
+
+    private static DarkStoreManager instance;
+    private ArrayList<DarkStore> darkStores;
+    private volatile DarkStoreIndex index;
+
+    private DarkStoreManager(){
+        darkStores = new ArrayList<>();
+        index = new DarkStoreIndex(darkStores, INDEX_CELL_SIZE);
+    }
+
+    public static synchronized DarkStoreManager getInstance(){
+        if (instance == null) {
+            instance = new DarkStoreManager();
+        }
+        return instance;
+    }
+
+    public synchronized void registerDarkStore(DarkStore store){
+        darkStores.add(store);
+        index = new DarkStoreIndex(darkStores, INDEX_CELL_SIZE);
+        SkuAvailabilityIndex.getInstance().registerStore(store);
+    }
+
+    public ArrayList<DarkStore> getNearestDarkStore(double ux, double uy, double maxDistance){
+        return index.withinRadius(ux, uy, maxDistance);
+    }
+
+    public ArrayList<DarkStore> getKNearestDarkStores(double ux, double uy, int k, double maxDistance){
+        return index.nearest(ux, uy, k, maxDistance);
+    }
+
+    public synchronized ArrayList<DarkStore> getAllDarkStores(){
+        return new ArrayList<>(darkStores);
+    }
+}
+
+// ////////////////////////////////////////////
+// Replenishment Scheduler (singleton)
+// ///////////////////////////////////////////
+
+// Runs each registered store's ReplenishStrategy against its replenishment plan on a fixed
+// cadence, and early when a stock change makes the strategy ask for it (a threshold strategy
+// seeing stock drop below its threshold). Requests for a store are debounced and coalesced:
+// the first one schedules a single run after a short delay and later ones until it starts are
+// absorbed, so a burst of orders becomes one pass over the store's plan instead of one per SKU.
+// Runs execute on a bounded pool; if its queue is full the request is dropped and the next
+// tick retries. Stores registered after start() are picked up on the next tick.
+class ReplenishmentScheduler implements InventoryListener {
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 200;
+    private static final int QUEUE_CAPACITY = 1024;
+
+    // The store a worker is replenishing, so that run's own writes do not request another one
+    private static final ThreadLocal<DarkStore> replenishing = new ThreadLocal<>();
+
+    private static ReplenishmentScheduler instance;
+    private Set<DarkStore> watched;
+    private Set<DarkStore> pending;
+    // Written under the lock in start/stop, read without it by listeners and workers
+    private volatile ScheduledExecutorService timer;
+    private volatile ThreadPoolExecutor workers;
+    private long debounceMillis;
+    private LongAdder runs;
+    private LongAdder triggers;
+    private LongAdder coalesced;
+    private LongAdder dropped;
+
+    private ReplenishmentScheduler(){
+        watched = ConcurrentHashMap.newKeySet();
+        pending = ConcurrentHashMap.newKeySet();
+        runs = new LongAdder();
+        triggers = new LongAdder();
+        coalesced = new LongAdder();
+        dropped = new LongAdder();
+    }
+
+    public static synchronized ReplenishmentScheduler getInstance(){
+        if (instance == null) {
+            instance = new ReplenishmentScheduler();
+        }
+        return instance;
+    }
+
+    public void start(long period, TimeUnit unit, int workerCount){
+        start(period, unit, workerCount, DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    public synchronized void start(long period, TimeUnit unit, int workerCount, long debounceMillis){
+        if (timer != null) {
+            throw new IllegalStateException("Replenishment scheduler already running");
+        }
+        if (period <= 0 || workerCount <= 0 || debounceMillis < 0) {
+            throw new IllegalArgumentException("period and workerCount must be positive, debounceMillis non-negative");
+        }
+        this.debounceMillis = debounceMillis;
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> newThread(runnable, "replenishment-timer"));
+        AtomicInteger workerIds = new AtomicInteger();
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                runnable -> newThread(runnable, "replenishment-worker-" + workerIds.incrementAndGet()));
+        watchNewStores();
+        timer.scheduleAtFixedRate(this::tick, period, period, unit);
+        System.out.println("[Replenishment Scheduler] Started, every " + period + " " + unit.toString().toLowerCase()
+                + " with " + workerCount + " workers");
+    }
+
+    // Stops scheduling; a run already in progress finishes
+    public synchronized void stop(){
+        if (timer == null) {
+            return;
+        }
+        for (DarkStore store : watched) {
+            store.getInventoryManager().removeListener(this);
+        }
+        watched.clear();
+        timer.shutdownNow();
+        workers.shutdown();
+        timer = null;
+        workers = null;
+        pending.clear();
+        System.out.println("[Replenishment Scheduler] Stopped");
+    }
+
+    public synchronized boolean isRunning(){
+        return timer != null;
+    }
+
+    // Asks for a run of store's replenishment soon, merged with any request already waiting
+    public void requestReplenishment(DarkStore store){
+        ScheduledExecutorService current = timer;
+        if (current == null) {
+            return;
+        }
+        if (!pending.add(store)) {
+            coalesced.increment();
+            return;
+        }
+        try {
+            current.schedule(() -> dispatch(store), debounceMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pending.remove(store);
+        }
+    }
+
+    @Override
+    public void onStockChanged(DarkStore store, int sku) {
+        if (store != null && replenishing.get() != store && store.needsReplenishment(sku)) {
+            triggers.increment();
+            requestReplenishment(store);
+        }
+    }
+
+    public long getRunCount(){
+        return runs.sum();
+    }
+
+    public long getTriggerCount(){
+        return triggers.sum();
+    }
+
+    public long getCoalescedCount(){
+        return coalesced.sum();
+    }
+
+    public long getDroppedCount(){
+        return dropped.sum();
+    }
+
+    private void tick(){
+        watchNewStores();
+        for (DarkStore store : DarkStoreManager.getInstance().getAllDarkStores()) {
+            requestReplenishment(store);
+        }
+    }
+
+    private void watchNewStores(){
+        for (DarkStore store : DarkStoreManager.getInstance().getAllDarkStores()) {
+            if (watched.add(store)) {
+                store.getInventoryManager().addListener(this);
+            }
+        }
+    }
+
+    private void dispatch(DarkStore store){
+        ThreadPoolExecutor current = workers;
+        try {
+            if (current == null) {
+                throw new RejectedExecutionException();
+            }
+            current.execute(() -> run(store));
+        } catch (RejectedExecutionException e) {
+            pending.remove(store);
+            dropped.increment();
+        }
+    }
+
+    private void run(DarkStore store){
+        // Cleared first, so stock changes made while this run is going schedule another one
+        pending.remove(store);
+        replenishing.set(store);
+        try {
+            store.runReplenishment();
+            runs.increment();
+        } catch (RuntimeException e) {
+            System.out.println("[Replenishment Scheduler] Replenishment failed for " + store.getName() + ": " + e.getMessage());
+        } finally {
+            replenishing.remove();
+        }
+    }
+
+    private static Thread newThread(Runnable runnable, String name){
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
+
+// ////////////////////////////////////////////
+// SKU Availability Index (singleton)
+// ///////////////////////////////////////////
+
+interface AvailabilityListener {
+    // A store's stock of product went from zero to positive (inStock) or back to zero
+    public void onAvailabilityChanged(DarkStore store, Product product, boolean inStock);
+}
+
+// Bit set over dense ids. Reads are lock-free; writes are rare (stock crossing zero) and take
+// the monitor so the word array can grow safely.
+class AtomicBitSet {
+    private volatile AtomicLongArray words = new AtomicLongArray(1);
+
+    public boolean get(int bit){
+        AtomicLongArray current = words;
+        int word = bit >>> 6;
+        return word < current.length() && (current.get(word) & (1L << bit)) != 0;
+    }
+
+    public synchronized void set(int bit, boolean value){
+        int word = bit >>> 6;
+        if (word >= words.length()) {
+            if (!value) {
+                return;
+            }
+            AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, words.length() * 2));
+            for (int i = 0; i < words.length(); i++) {
+                grown.set(i, words.get(i));
+            }
+            words = grown;
+        }
+        long mask = 1L << bit;
+        words.set(word, value ? words.get(word) | mask : words.get(word) & ~mask);
+    }
+
+    public long[] orInto(long[] accumulator){
+        AtomicLongArray current = words;
+        if (accumulator.length < current.length()) {
+            accumulator = Arrays.copyOf(accumulator, current.length());
+        }
+        for (int i = 0; i < current.length(); i++) {
+            accumulator[i] |= current.get(i);
+        }
+        return accumulator;
+    }
+}
+
+// Which registered dark stores have each SKU in stock, kept current from inventory events.
+// Stores and SKUs get dense ids; every store has a bit set of the SKU ids it has in stock and
+// every SKU a bit set of the store ids stocking it, so "nearby stores carrying X" and "everything
+// available nearby" are bit tests and ORs instead of walks over each store's inventory.
+// Quantities stay in the stores' own counters; the index only tracks zero/positive, and product
+// details are read from the ProductCatalog so they follow price updates.
+class SkuAvailabilityIndex implements InventoryListener {
+    private static SkuAvailabilityIndex instance;
+
+    private ConcurrentHashMap<DarkStore, Integer> storeIds;
+    private volatile DarkStore[] stores;
+    private volatile AtomicBitSet[] storeSkus;
+    private volatile SkuTable skuIds;
+    private volatile int[] skus;
+    private volatile AtomicBitSet[] skuStores;
+    private CopyOnWriteArrayList<AvailabilityListener> listeners;
+
+    private SkuAvailabilityIndex(){
+        storeIds = new ConcurrentHashMap<>();
+        stores = new DarkStore[0];
+        storeSkus = new AtomicBitSet[0];
+        skuIds = new SkuTable(16);
+        skus = new int[0];
+        skuStores = new AtomicBitSet[0];
+        listeners = new CopyOnWriteArrayList<>();
+    }
+
+    public static synchronized SkuAvailabilityIndex getInstance(){
+        if (instance == null) {
+            instance = new SkuAvailabilityIndex();
+        }
+        return instance;
+    }
+
+    public void addListener(AvailabilityListener listener){
+        listeners.add(listener);
+    }
+
+    public void removeListener(AvailabilityListener listener){
+        listeners.remove(listener);
+    }
+
+    public synchronized void registerStore(DarkStore store){
+        if (storeIds.containsKey(store)) {
+            return;
+        }
+        int id = stores.length;
+        DarkStore[] grownStores = Arrays.copyOf(stores, id + 1);
+        grownStores[id] = store;
+        AtomicBitSet[] grownSkus = Arrays.copyOf(storeSkus, id + 1);
+        grownSkus[id] = new AtomicBitSet();
+        storeSkus = grownSkus;
+        stores = grownStores;
+        storeIds.put(store, id);
+
+        store.getInventoryManager().addListener(this);
+        for (Product product : store.getAllProducts()) {
+            onStockChanged(store, product.getsku());
+        }
+    }
+
+    @Override
+    public void onStockChanged(DarkStore store, int sku){
+        Integer storeId = storeIds.get(store);
+        if (storeId == null) {
+            return;
+        }
+        int skuId = skuIdOf(sku);
+        AtomicBitSet inStock = storeSkus[storeId];
+        if (inStock.get(skuId) == store.checkStock(sku) > 0) {
+            return;
+        }
+        // Re-read after each flip: a concurrent event may have flipped the bit from an older
+        // quantity, and whichever thread writes last must leave it matching the store
+        synchronized (inStock) {
+            while (true) {
+                boolean available = store.checkStock(sku) > 0;
+                if (inStock.get(skuId) == available) {
+                    return;
+                }
+                inStock.set(skuId, available);
+                skuStores[skuId].set(storeId, available);
+                for (AvailabilityListener listener : listeners) {
+                    listener.onAvailabilityChanged(store, productAt(skuId), available);
+                }
+            }
+        }
+    }
+
+    public boolean isAvailable(DarkStore store, int sku){
+        return isAvailableById(store, skuIds.find(sku));
+    }
+
+    public boolean isAvailableById(DarkStore store, int skuId){
+        Integer storeId = storeIds.get(store);
+        return storeId != null && skuId >= 0 && storeSkus[storeId].get(skuId);
+    }
+
+    // Dense id of a registered store, or -1
+    public int storeIdOf(DarkStore store){
+        Integer storeId = storeIds.get(store);
+        return storeId == null ? -1 : storeId;
+    }
+
+    // Dense id of a SKU ever seen in stock, or -1
+    public int findSkuId(int sku){
+        return skuIds.find(sku);
+    }
+
+    public Product productAt(int skuId){
+        return ProductCatalog.getInstance().get(skus[skuId]);
+    }
+
+    // ORs the store's in-stock SKU ids into accumulator, growing it if needed
+    public long[] availableSkus(DarkStore store, long[] accumulator){
+        Integer storeId = storeIds.get(store);
+        return storeId == null ? accumulator : storeSkus[storeId].orInto(accumulator);
+    }
+
+    // Candidates holding at least minQty of sku, in candidate order
+    public ArrayList<DarkStore> storesWithStock(int sku, int minQty, ArrayList<DarkStore> candidates){
+        ArrayList<DarkStore> result = new ArrayList<>();
+        int skuId = skuIds.find(sku);
+        if (skuId < 0) {
+            return result;
+        }
+        AtomicBitSet carriers = skuStores[skuId];
+        for (DarkStore store : candidates) {
+            Integer storeId = storeIds.get(store);
+            if (storeId != null && carriers.get(storeId) && store.checkStock(sku) >= minQty) {
+                result.add(store);
+            }
+        }
+        return result;
+    }
+
+    // Candidates stocking at least one of skus, in candidate order
+    public ArrayList<DarkStore> storesCarryingAny(Iterable<Integer> skus, ArrayList<DarkStore> candidates){
+        ArrayList<DarkStore> result = new ArrayList<>();
+        for (DarkStore store : candidates) {
+            Integer storeId = storeIds.get(store);
+            if (storeId == null) {
+                // Not indexed, so we cannot rule it out
+                result.add(store);
+                continue;
+            }
+            for (int sku : skus) {
+                int skuId = skuIds.find(sku);
+                if (skuId >= 0 && storeSkus[storeId].get(skuId)) {
+                    result.add(store);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Every product in stock in at least one of the stores, in the order SKUs were first seen
+    public ArrayList<Product> availableProducts(ArrayList<DarkStore> nearbyStores){
+        long[] union = new long[1];
+        for (DarkStore store : nearbyStores) {
+            union = availableSkus(store, union);
+        }
+        ArrayList<Product> available = new ArrayList<>();
+        for (int word = 0; word < union.length; word++) {
+            long bits = union[word];
+            while (bits != 0) {
+                int skuId = (word << 6) + Long.numberOfTrailingZeros(bits);
+                available.add(productAt(skuId));
+                bits &= bits - 1;
+            }
+        }
+        return available;
+    }
+
+    private int skuIdOf(int sku){
+        int id = skuIds.find(sku);
+        return id >= 0 ? id : addSku(sku);
+    }
+
+    private synchronized int addSku(int sku){
+        int id = skuIds.find(sku);
+        if (id >= 0) {
+            return id;
+        }
+        id = skus.length;
+        int[] grownSkus = Arrays.copyOf(skus, id + 1);
+        grownSkus[id] = sku;
+        AtomicBitSet[] grownStores = Arrays.copyOf(skuStores, id + 1);
+        grownStores[id] = new AtomicBitSet();
+        skus = grownSkus;
+        skuStores = grownStores;
+        skuIds = skuIds.with(sku, id);
+        return id;
+    }
+
+    // Open-addressing SKU -> dense id map; immutable, replaced on insert
+    private static class SkuTable {
+        private final int[] skus;
+        private final int[] ids;
+        private final int size;
+
+        SkuTable(int capacity){
+            this(new int[capacity], new int[capacity], 0);
+            Arrays.fill(ids, -1);
+        }
+
+        private SkuTable(int[] skus, int[] ids, int size){
+            this.skus = skus;
+            this.ids = ids;
+            this.size = size;
+        }
+
+        int find(int sku){
+            int mask = skus.length - 1;
+            int hash = sku * 0x9E3779B9;
+            for (int slot = (hash ^ (hash >>> 16)) & mask; ids[slot] >= 0; slot = (slot + 1) & mask) {
+                if (skus[slot] == sku) {
+                    return ids[slot];
+                }
+            }
+            return -1;
+        }
+
+        SkuTable with(int sku, int id){
+            int capacity = skus.length;
+            while ((size + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+            SkuTable next = new SkuTable(capacity);
+            for (int slot = 0; slot < skus.length; slot++) {
+                if (ids[slot] >= 0) {
+                    next.place(skus[slot], ids[slot]);
+                }
+            }
+            next.place(sku, id);
+            return new SkuTable(next.skus, next.ids, size + 1);
+        }
+
+        private void place(int sku, int id){
+            int mask = skus.length - 1;
+            int hash = sku * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (ids[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            skus[slot] = sku;
+            ids[slot] = id;
+        }
+    }
+}
+
+// ////////////////////////////////////////////
+// Catalog Cache (singleton)
+// ///////////////////////////////////////////
+
+enum CatalogSort {
+    SKU,
+    NAME,
+    PRICE_LOW_TO_HIGH,
+    PRICE_HIGH_TO_LOW
+}
+
+// Home-screen catalog per small location cell. An entry remembers which stores were in range
+// when it was built and is only served while a user's nearby-store set still matches it; near a
+// cell edge, where that set varies, entries are also shared by store set. Entries are kept
+// current from SkuAvailabilityIndex events: when a SKU goes in or out of stock at one of an
+// entry's stores, only that SKU is re-checked. Entries are fully built before they are
+// published. Sorted views are built on first read after a change and then shared by every
+// reader of the cell.
+class CatalogCache implements AvailabilityListener, PriceListener {
+    private static final double CELL_SIZE = 0.5;
+    private static final double DELIVERY_RADIUS = 5.0;
+    private static final int MAX_ENTRIES = 50_000;
+
+    private static CatalogCache instance;
+    private ConcurrentHashMap<Long, Entry> entries;
+    private ConcurrentHashMap<StoreSet, Entry> entriesBySignature;
+    private ConcurrentHashMap<DarkStore, Set<Entry>> entriesByStore;
+    private LongAdder hits;
+    private LongAdder misses;
+
+    private CatalogCache(){
+        entries = new ConcurrentHashMap<>();
+        entriesBySignature = new ConcurrentHashMap<>();
+        entriesByStore = new ConcurrentHashMap<>();
+        hits = new LongAdder();
+        misses = new LongAdder();
+        SkuAvailabilityIndex.getInstance().addListener(this);
+        ProductCatalog.getInstance().addListener(this);
+    }
+
+    public static synchronized CatalogCache getInstance(){
+        if (instance == null) {
+            instance = new CatalogCache();
+        }
+        return instance;
+    }
+
+    // One page of the products deliverable to (ux, uy); page numbers start at 0
+    public ArrayList<Product> getCatalog(double ux, double uy, CatalogSort sort, int page, int pageSize){
+        Product[] view = entryFor(ux, uy).view(sort);
+        int from = (int) Math.min((long) page * pageSize, view.length);
+        int to = (int) Math.min((long) from + pageSize, view.length);
+        ArrayList<Product> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            result.add(view[i]);
+        }
+        return result;
+    }
+
+    public int getCatalogSize(double ux, double uy){
+        return entryFor(ux, uy).view(CatalogSort.SKU).length;
+    }
+
+    public long getHits(){
+        return hits.sum();
+    }
+
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    @Override
+    public void onAvailabilityChanged(DarkStore store, Product product, boolean inStock) {
+        Set<Entry> affected = entriesByStore.get(store);
+        if (affected == null) {
+            return;
+        }
+        int skuId = SkuAvailabilityIndex.getInstance().findSkuId(product.getsku());
+        for (Entry entry : affected) {
+            entry.refresh(skuId);
+        }
+    }
+
+    // Views hold product instances, so every view is rebuilt, not only the price-sorted ones
+    @Override
+    public void onPriceChanged(Product previous, Product current) {
+        for (Entry entry : entriesBySignature.values()) {
+            entry.invalidateViews();
+        }
+    }
+
+    private Entry entryFor(double ux, double uy){
+        long cell = ((long) (int) Math.floor(ux / CELL_SIZE) << 32) | ((int) Math.floor(uy / CELL_SIZE) & 0xFFFFFFFFL);
+        ArrayList<DarkStore> nearby = DarkStoreManager.getInstance().getNearestDarkStore(ux, uy, DELIVERY_RADIUS);
+        int[] signature = signatureOf(nearby);
+
+        Entry entry = entries.get(cell);
+        if (entry != null && Arrays.equals(entry.signature, signature)) {
+            hits.increment();
+            return entry;
+        }
+        StoreSet key = new StoreSet(signature);
+        entry = entriesBySignature.get(key);
+        if (entry != null) {
+            hits.increment();
+            entries.put(cell, entry);
+            return entry;
+        }
+
+        misses.increment();
+        if (entriesBySignature.size() >= MAX_ENTRIES || entries.size() >= MAX_ENTRIES) {
+            entries.clear();
+            entriesBySignature.clear();
+            entriesByStore.clear();
+        }
+        // Built before publishing, so no reader can cache a view of a half-built entry
+        Entry fresh = new Entry(nearby, signature);
+        fresh.build();
+        Entry existing = entriesBySignature.putIfAbsent(key, fresh);
+        if (existing != null) {
+            fresh.detach();
+            fresh = existing;
+        }
+        entries.put(cell, fresh);
+        return fresh;
+    }
+
+    private static int[] signatureOf(ArrayList<DarkStore> stores){
+        int[] ids = new int[stores.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = SkuAvailabilityIndex.getInstance().storeIdOf(stores.get(i));
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private class Entry {
+        private DarkStore[] stores;
+        private int[] signature;
+        private long[] available;
+        private volatile AtomicReferenceArray<Product[]> views;
+
+        Entry(ArrayList<DarkStore> stores, int[] signature){
+            this.stores = stores.toArray(new DarkStore[0]);
+            this.signature = signature;
+            this.available = new long[1];
+            this.views = new AtomicReferenceArray<>(CatalogSort.values().length);
+        }
+
+        // Registers for events before reading the index, so no transition can slip between
+        synchronized void build(){
+            for (DarkStore store : stores) {
+                entriesByStore.computeIfAbsent(store, key -> ConcurrentHashMap.newKeySet()).add(this);
+            }
+            SkuAvailabilityIndex index = SkuAvailabilityIndex.getInstance();
+            for (DarkStore store : stores) {
+                available = index.availableSkus(store, available);
+            }
+        }
+
+        // Stops events for an entry that lost the race to be published
+        void detach(){
+            for (DarkStore store : stores) {
+                Set<Entry> registered = entriesByStore.get(store);
+                if (registered != null) {
+                    registered.remove(this);
+                }
+            }
+        }
+
+        // Recomputes one SKU from the index, so events may arrive in any order or twice
+        synchronized void refresh(int skuId){
+            SkuAvailabilityIndex index = SkuAvailabilityIndex.getInstance();
+            boolean inStock = false;
+            for (DarkStore store : stores) {
+                if (index.isAvailableById(store, skuId)) {
+                    inStock = true;
+                    break;
+                }
+            }
+            int word = skuId >>> 6;
+            if (word >= available.length) {
+                if (!inStock) {
+                    return;
+                }
+                available = Arrays.copyOf(available, word + 1);
+            }
+            boolean wasInStock = (available[word] & (1L << skuId)) != 0;
+            if (wasInStock != inStock) {
+                available[word] ^= 1L << skuId;
+                views = new AtomicReferenceArray<>(CatalogSort.values().length);
+            }
+        }
+
+        synchronized void invalidateViews(){
+            views = new AtomicReferenceArray<>(CatalogSort.values().length);
+        }
+
+        Product[] view(CatalogSort sort){
+            Product[] view = views.get(sort.ordinal());
+            return view != null ? view : buildView(sort);
+        }
+
+        private synchronized Product[] buildView(CatalogSort sort){
+            AtomicReferenceArray<Product[]> current = views;
+            if (current.get(sort.ordinal()) != null) {
+                return current.get(sort.ordinal());
+            }
+            SkuAvailabilityIndex index = SkuAvailabilityIndex.getInstance();
+            ArrayList<Product> products = new ArrayList<>();
+            for (int word = 0; word < available.length; word++) {
+                long bits = available[word];
+                while (bits != 0) {
+                    products.add(index.productAt((word << 6) + Long.numberOfTrailingZeros(bits)));
+                    bits &= bits - 1;
+                }
+            }
+            products.sort(comparatorFor(sort));
+            Product[] view = products.toArray(new Product[0]);
+            current.set(sort.ordinal(), view);
+            return view;
+        }
+    }
+
+    private static class StoreSet {
+        private final int[] ids;
+
+        StoreSet(int[] ids){
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean equals(Object other){
+            return other instanceof StoreSet && Arrays.equals(ids, ((StoreSet) other).ids);
         }
-        return instance;
-    }
 
-    public void registerDarkStore(DarkStore store){
-        darkStores.add(store);
+        @Override
+        public int hashCode(){
+            return Arrays.hashCode(ids);
+        }
     }
 
-    public ArrayList<DarkStore> getNearestDarkStore(double ux, double uy, double maxDistance){
-        ArrayList<Pair<Double, DarkStore>> distlist = new ArrayList<>();
-        for(DarkStore store : darkStores){
-            double distance = store.distanceTo(ux, uy);
-            if (distance <= maxDistance) {
-                distlist.add(new Pair<>(distance, store));
-            }
-        }
-        
-        distlist.sort((a, b) -> Double.compare(a.first, b.first));
-        ArrayList<DarkStore> result = new ArrayList<>();
-        for (Pair<Double, DarkStore> pair : distlist) {
-            result.add(pair.second);
+    private static Comparator<Product> comparatorFor(CatalogSort sort){
+        switch (sort) {
+            case NAME:
+                return Comparator.comparing(Product::getName).thenComparingInt(Product::getsku);
+            case PRICE_LOW_TO_HIGH:
+                return Comparator.comparingDouble(Product::getPrice).thenComparingInt(Product::getsku);
+            case PRICE_HIGH_TO_LOW:
+                return Comparator.comparingDouble(Product::getPrice).reversed().thenComparingInt(Product::getsku);
+            default:
+                return Comparator.comparingInt(Product::getsku);
         }
-        return result;
     }
 }
 
@@ -351,6 +1909,7 @@ class Cart {
     }
 
     public void addToCart(int sku, int quantity){
+        InventoryStore.requirePositive(quantity);
         Product p = ProductFactory.createProduct(sku);
         items.add(new Pair<Product, Integer>(p, quantity));
         System.out.println("[Cart] Added SKU " + sku + " (" + p + p.getName() + " ) x" + quantity);
@@ -369,12 +1928,548 @@ class Cart {
     }
 }
 
+// //////////////////////////////////////////////////
+// Reservation Engine
+// //////////////////////////////////////////////////
+
+class ReservationLine {
+    private DarkStore store;
+    private Product product;
+    private int quantity;
+
+    public ReservationLine(DarkStore store, Product product, int quantity){
+        this.store = store;
+        this.product = product;
+        this.quantity = quantity;
+    }
+
+    public DarkStore getStore(){
+        return this.store;
+    }
+
+    public Product getProduct(){
+        return this.product;
+    }
+
+    public int getQuantity(){
+        return this.quantity;
+    }
+}
+
+enum ReservationState {
+    PENDING,
+    COMMITTED,
+    RELEASED
+}
+
+class Reservation {
+    private static AtomicInteger nextId = new AtomicInteger();
+    private int reservationId;
+    private ArrayList<ReservationLine> lines;
+    private long expiresAt;
+    private AtomicReference<ReservationState> state;
+
+    public Reservation(ArrayList<ReservationLine> lines, long expiresAt){
+        this.reservationId = nextId.getAndIncrement();
+        this.lines = lines;
+        this.expiresAt = expiresAt;
+        this.state = new AtomicReference<>(ReservationState.PENDING);
+    }
+
+    public int getReservationId(){
+        return this.reservationId;
+    }
+
+    public ArrayList<ReservationLine> getLines(){
+        return this.lines;
+    }
+
+    public long getExpiresAt(){
+        return this.expiresAt;
+    }
+
+    public ReservationState getState(){
+        return state.get();
+    }
+
+    // Commit, release and expiry race on this; exactly one of them wins
+    boolean transition(ReservationState from, ReservationState to){
+        return state.compareAndSet(from, to);
+    }
+}
+
+// Holds stock for every line of an order across stores, all or nothing. Each line is taken with
+// the store's atomic tryReserve; if any line fails, the lines already taken are put back, so no
+// lock spans stores. A reservation that is neither committed nor released before its deadline is
+// released by a background reaper, so an abandoned checkout cannot pin stock.
+class ReservationEngine {
+    private static final long REAP_INTERVAL_MILLIS = 1000;
+
+    private static ReservationEngine instance;
+    private ConcurrentHashMap<Integer, Reservation> pending;
+    private ScheduledExecutorService reaper;
+
+    private ReservationEngine(){
+        pending = new ConcurrentHashMap<>();
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "reservation-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::releaseExpired, REAP_INTERVAL_MILLIS, REAP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized ReservationEngine getInstance(){
+        if (instance == null) {
+            instance = new ReservationEngine();
+        }
+        return instance;
+    }
+
+    // Returns null, with nothing held, if any line cannot be reserved
+    public Reservation reserve(ArrayList<ReservationLine> lines, long ttlMillis){
+        for (int i = 0; i < lines.size(); i++) {
+            ReservationLine line = lines.get(i);
+            if (!line.getStore().tryReserve(line.getProduct().getsku(), line.getQuantity())) {
+                putBack(lines, i);
+                return null;
+            }
+        }
+        Reservation reservation = new Reservation(lines, System.currentTimeMillis() + ttlMillis);
+        pending.put(reservation.getReservationId(), reservation);
+        return reservation;
+    }
+
+    // False if the reservation already expired or was released
+    public boolean commit(Reservation reservation){
+        if (!reservation.transition(ReservationState.PENDING, ReservationState.COMMITTED)) {
+            return false;
+        }
+        pending.remove(reservation.getReservationId());
+        return true;
+    }
+
+    public boolean release(Reservation reservation){
+        if (!reservation.transition(ReservationState.PENDING, ReservationState.RELEASED)) {
+            return false;
+        }
+        pending.remove(reservation.getReservationId());
+        putBack(reservation.getLines(), reservation.getLines().size());
+        return true;
+    }
+
+    public int getPendingCount(){
+        return pending.size();
+    }
+
+    private void releaseExpired(){
+        long now = System.currentTimeMillis();
+        for (Reservation reservation : pending.values()) {
+            if (reservation.getExpiresAt() <= now && release(reservation)) {
+                System.out.println("[Reservation Engine] Released expired reservation #" + reservation.getReservationId());
+            }
+        }
+    }
+
+    private void putBack(ArrayList<ReservationLine> lines, int count){
+        for (int i = 0; i < count; i++) {
+            ReservationLine line = lines.get(i);
+            line.getStore().releaseStock(line.getProduct().getsku(), line.getQuantity());
+        }
+    }
+}
+
+// //////////////////////////////////////////////////
+// Fulfillment Planners
+// //////////////////////////////////////////////////
+
+interface FulfillmentPlanner {
+    // Lines to reserve for requestedItems from nearbyDarkStores (nearest first). Whatever no
+    // store can supply is put into unfulfilled.
+    public ArrayList<ReservationLine> plan(double ux, double uy, LinkedHashMap<Integer, Integer> requestedItems,
+            HashMap<Integer, Product> products, ArrayList<DarkStore> nearbyDarkStores, HashMap<Integer, Integer> unfulfilled);
+}
+
+// Whole order from the nearest store if it has everything, otherwise walk stores nearest first
+// and take what each has
+class GreedyFulfillmentPlanner implements FulfillmentPlanner {
+
+    @Override
+    public ArrayList<ReservationLine> plan(double ux, double uy, LinkedHashMap<Integer, Integer> requestedItems,
+            HashMap<Integer, Product> products, ArrayList<DarkStore> nearbyDarkStores, HashMap<Integer, Integer> unfulfilled) {
+        ArrayList<ReservationLine> plan = new ArrayList<>();
+
+        DarkStore firstStore = nearbyDarkStores.get(0);
+        boolean allInFirst = true;
+        for (Integer sku : requestedItems.keySet()) {
+            if (firstStore.checkStock(sku) < requestedItems.get(sku)) {
+                allInFirst = false;
+                break;
+            }
+        }
+        if (allInFirst) {
+            for (Integer sku : requestedItems.keySet()) {
+                plan.add(new ReservationLine(firstStore, products.get(sku), requestedItems.get(sku)));
+            }
+            return plan;
+        }
+
+        LinkedHashMap<Integer, Integer> remaining = new LinkedHashMap<>(requestedItems);
+        for (DarkStore store : nearbyDarkStores) {
+            if (remaining.isEmpty()) break;
+
+            ArrayList<Integer> toErase = new ArrayList<>();
+            for (Integer sku : remaining.keySet()) {
+                int takenQty = Math.min(store.checkStock(sku), remaining.get(sku));
+                if (takenQty <= 0) continue;
+
+                plan.add(new ReservationLine(store, products.get(sku), takenQty));
+                if (remaining.get(sku) > takenQty) {
+                    remaining.put(sku, remaining.get(sku) - takenQty);
+                } else {
+                    toErase.add(sku);
+                }
+            }
+            for (int sku : toErase) remaining.remove(sku);
+        }
+        unfulfilled.putAll(remaining);
+        return plan;
+    }
+}
+
+// Picks the cheapest set of stores that together cover everything the nearby stores can supply.
+// This is weighted set cover with quantities, solved by depth-first branch and bound: each node
+// branches on the still-short item with the fewest possible suppliers, and prunes on the bound
+// (cheapest remaining store) x (fewest stores that could still cover the neediest item). The
+// better of the greedy plan and a cost-ratio greedy cover seeds the bound. The search keeps the
+// best cover found so far when it runs out of work budget, counted in (store, item) cells
+// scanned so bigger orders get fewer nodes, or past its deadline from the start of plan().
+abstract class SearchFulfillmentPlanner implements FulfillmentPlanner {
+    private static final long DEFAULT_WORK_BUDGET = 100_000;
+    private static final long DEFAULT_TIME_BUDGET_NANOS = 200_000;
+
+    private long workBudget;
+    private long timeBudgetNanos;
+    private GreedyFulfillmentPlanner fallback;
+
+    protected SearchFulfillmentPlanner(long workBudget, long timeBudgetNanos){
+        this.workBudget = workBudget;
+        this.timeBudgetNanos = timeBudgetNanos;
+        this.fallback = new GreedyFulfillmentPlanner();
+    }
+
+    protected SearchFulfillmentPlanner(){
+        this(DEFAULT_WORK_BUDGET, DEFAULT_TIME_BUDGET_NANOS);
+    }
+
+    // Cost of sending a delivery partner from this store
+    protected abstract double storeCost(DarkStore store, double ux, double uy);
+
+    @Override
+    public ArrayList<ReservationLine> plan(double ux, double uy, LinkedHashMap<Integer, Integer> requestedItems,
+            HashMap<Integer, Product> products, ArrayList<DarkStore> nearbyDarkStores, HashMap<Integer, Integer> unfulfilled) {
+        long deadline = System.nanoTime() + timeBudgetNanos;
+        HashMap<Integer, Integer> greedyUnfulfilled = new HashMap<>();
+        ArrayList<ReservationLine> greedyPlan = fallback.plan(ux, uy, requestedItems, products, nearbyDarkStores, greedyUnfulfilled);
+
+        int itemCount = requestedItems.size();
+        int[] skus = new int[itemCount];
+        int[] wanted = new int[itemCount];
+        int i = 0;
+        for (Integer sku : requestedItems.keySet()) {
+            skus[i] = sku;
+            wanted[i++] = requestedItems.get(sku);
+        }
+
+        // Stock snapshot, capped at what is wanted; stores that supply nothing are dropped
+        ArrayList<DarkStore> stores = new ArrayList<>();
+        ArrayList<int[]> stockRows = new ArrayList<>();
+        int[] target = new int[itemCount];
+        for (DarkStore store : nearbyDarkStores) {
+            int[] row = new int[itemCount];
+            boolean useful = false;
+            for (int item = 0; item < itemCount; item++) {
+                row[item] = Math.min(store.checkStock(skus[item]), wanted[item]);
+                target[item] = Math.min(target[item] + row[item], wanted[item]);
+                useful |= row[item] > 0;
+            }
+            if (useful) {
+                stores.add(store);
+                stockRows.add(row);
+            }
+        }
+
+        Search search = new Search(stores, stockRows, target, ux, uy, deadline);
+        double greedyCost = 0;
+        for (DarkStore store : storesOf(greedyPlan)) {
+            greedyCost += storeCost(store, ux, uy);
+        }
+        search.seed(greedyCost);
+        search.run(0.0);
+        if (search.best == null) {
+            unfulfilled.putAll(greedyUnfulfilled);
+            return greedyPlan;
+        }
+
+        // Fill from the chosen stores nearest first
+        ArrayList<ReservationLine> plan = new ArrayList<>();
+        int[] remaining = wanted.clone();
+        for (int s = 0; s < stores.size(); s++) {
+            if (!search.best[s]) {
+                continue;
+            }
+            int[] row = stockRows.get(s);
+            for (int item = 0; item < itemCount; item++) {
+                int takenQty = Math.min(row[item], remaining[item]);
+                if (takenQty > 0) {
+                    plan.add(new ReservationLine(stores.get(s), products.get(skus[item]), takenQty));
+                    remaining[item] -= takenQty;
+                }
+            }
+        }
+        for (int item = 0; item < itemCount; item++) {
+            if (remaining[item] > 0) {
+                unfulfilled.put(skus[item], remaining[item]);
+            }
+        }
+        return plan;
+    }
+
+    private static ArrayList<DarkStore> storesOf(ArrayList<ReservationLine> plan){
+        ArrayList<DarkStore> stores = new ArrayList<>();
+        for (ReservationLine line : plan) {
+            if (!stores.contains(line.getStore())) {
+                stores.add(line.getStore());
+            }
+        }
+        return stores;
+    }
+
+    private class Search {
+        private int[][] stock;
+        private double[] costs;
+        private Integer[] byCost;
+        private int[] deficit;
+        private boolean[] chosen;
+        private boolean[] excluded;
+        private int[] scratch;
+        private boolean[] best;
+        private double bestCost;
+        private long deadline;
+        private long nodeWork;
+        private long work;
+        private int nodes;
+        private boolean stopped;
+
+        Search(ArrayList<DarkStore> stores, ArrayList<int[]> stockRows, int[] target, double ux, double uy, long deadline){
+            int n = stores.size();
+            this.deadline = deadline;
+            // Each node scans every store for every item, then the stores again for the bound
+            nodeWork = (long) n * (target.length + 1);
+            stock = stockRows.toArray(new int[0][]);
+            costs = new double[n];
+            byCost = new Integer[n];
+            for (int s = 0; s < n; s++) {
+                costs[s] = storeCost(stores.get(s), ux, uy);
+                byCost[s] = s;
+            }
+            Arrays.sort(byCost, (a, b) -> Double.compare(costs[a], costs[b]));
+            deficit = target.clone();
+            chosen = new boolean[n];
+            excluded = new boolean[n];
+            scratch = new int[n];
+        }
+
+        // Starts the bound at the greedy plan's cost, or at a cost-ratio greedy cover if cheaper
+        void seed(double greedyCost){
+            bestCost = greedyCost;
+            int[] left = deficit.clone();
+            boolean[] picked = new boolean[costs.length];
+            double cost = 0;
+            while (true) {
+                int pick = -1;
+                double bestRatio = 0;
+                for (int s = 0; s < costs.length; s++) {
+                    if (picked[s]) continue;
+                    long covered = 0;
+                    for (int item = 0; item < left.length; item++) {
+                        covered += Math.min(stock[s][item], Math.max(0, left[item]));
+                    }
+                    double ratio = covered / (costs[s] + 1e-9);
+                    if (covered > 0 && ratio > bestRatio) {
+                        bestRatio = ratio;
+                        pick = s;
+                    }
+                }
+                if (pick < 0) break;
+                picked[pick] = true;
+                cost += costs[pick];
+                for (int item = 0; item < left.length; item++) {
+                    left[item] -= stock[pick][item];
+                }
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = picked;
+            }
+        }
+
+        void run(double cost){
+            work += nodeWork;
+            // nanoTime is checked every 16 nodes; it costs more than a small node
+            if (stopped || work > workBudget || ((++nodes & 15) == 0 && System.nanoTime() > deadline)) {
+                stopped = true;
+                return;
+            }
+            int branchItem = -1;
+            int fewestSuppliers = Integer.MAX_VALUE;
+            int storesNeeded = 0;
+            for (int item = 0; item < deficit.length; item++) {
+                if (deficit[item] <= 0) continue;
+                int suppliers = 0;
+                for (int s = 0; s < costs.length; s++) {
+                    if (!chosen[s] && !excluded[s] && stock[s][item] > 0) {
+                        scratch[suppliers++] = stock[s][item];
+                    }
+                }
+                int needed = storesToCover(suppliers, deficit[item]);
+                if (needed < 0) {
+                    return;
+                }
+                storesNeeded = Math.max(storesNeeded, needed);
+                if (suppliers < fewestSuppliers) {
+                    fewestSuppliers = suppliers;
+                    branchItem = item;
+                }
+            }
+            if (branchItem < 0) {
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = chosen.clone();
+                }
+                return;
+            }
+
+            double cheapest = Double.POSITIVE_INFINITY;
+            for (int s = 0; s < costs.length; s++) {
+                if (!chosen[s] && !excluded[s]) {
+                    cheapest = Math.min(cheapest, costs[s]);
+                }
+            }
+            if (cost + storesNeeded * cheapest >= bestCost) {
+                return;
+            }
+
+            // Some supplier of the scarcest item must be in the cover; try them cheapest first,
+            // and leave each one out of the later siblings so no set is explored twice
+            int[] tried = new int[fewestSuppliers];
+            int triedCount = 0;
+            for (int s : byCost) {
+                if (chosen[s] || excluded[s] || stock[s][branchItem] <= 0) continue;
+                chosen[s] = true;
+                for (int item = 0; item < deficit.length; item++) {
+                    deficit[item] -= stock[s][item];
+                }
+                run(cost + costs[s]);
+                for (int item = 0; item < deficit.length; item++) {
+                    deficit[item] += stock[s][item];
+                }
+                chosen[s] = false;
+                excluded[s] = true;
+                tried[triedCount++] = s;
+            }
+            for (int t = 0; t < triedCount; t++) {
+                excluded[tried[t]] = false;
+            }
+        }
+
+        // Fewest of the first count scratch quantities that add up to qty, or -1 if they cannot
+        private int storesToCover(int count, int qty){
+            int total = 0;
+            for (int k = 0; k < count; k++) {
+                total += scratch[k];
+            }
+            if (total < qty) {
+                return -1;
+            }
+            int stores = 0;
+            while (qty > 0) {
+                int largest = 0;
+                for (int k = 1; k < count; k++) {
+                    if (scratch[k] > scratch[largest]) largest = k;
+                }
+                qty -= scratch[largest];
+                scratch[largest] = 0;
+                stores++;
+            }
+            return stores;
+        }
+    }
+}
+
+// Fewest stores, so fewest delivery partners per order
+class MinStoreFulfillmentPlanner extends SearchFulfillmentPlanner {
+
+    public MinStoreFulfillmentPlanner(){
+        super();
+    }
+
+    public MinStoreFulfillmentPlanner(long workBudget, long timeBudgetNanos){
+        super(workBudget, timeBudgetNanos);
+    }
+
+    @Override
+    protected double storeCost(DarkStore store, double ux, double uy) {
+        return 1.0;
+    }
+}
+
+// Least total distance from the user to the stores involved
+class MinDistanceFulfillmentPlanner extends SearchFulfillmentPlanner {
+
+    public MinDistanceFulfillmentPlanner(){
+        super();
+    }
+
+    public MinDistanceFulfillmentPlanner(long workBudget, long timeBudgetNanos){
+        super(workBudget, timeBudgetNanos);
+    }
+
+    @Override
+    protected double storeCost(DarkStore store, double ux, double uy) {
+        return store.distanceTo(ux, uy);
+    }
+}
+
+enum FulfillmentPlannerType {
+    GREEDY,
+    MIN_STORES,
+    MIN_DISTANCE
+}
+
+class FulfillmentPlannerFactory {
+    private static final GreedyFulfillmentPlanner GREEDY = new GreedyFulfillmentPlanner();
+    private static final MinStoreFulfillmentPlanner MIN_STORES = new MinStoreFulfillmentPlanner();
+    private static final MinDistanceFulfillmentPlanner MIN_DISTANCE = new MinDistanceFulfillmentPlanner();
+
+    public static FulfillmentPlanner createPlanner(FulfillmentPlannerType type){
+        switch (type) {
+            case MIN_STORES:
+                return MIN_STORES;
+            case MIN_DISTANCE:
+                return MIN_DISTANCE;
+            default:
+                return GREEDY;
+        }
+    }
+}
+
 // //////////////////////////////////////////////////
 // Order & Order Management
 // //////////////////////////////////////////////////
 
 class Order {
-    private static int nextId;
+    private static AtomicInteger nextId = new AtomicInteger();
     private int orderId;
     private User user;
     private ArrayList<Pair<Product, Integer>> items;
@@ -382,7 +2477,7 @@ class Order {
     private double totalAmount;
 
     public Order(User user){
-        this.orderId = nextId++;
+        this.orderId = nextId.getAndIncrement();
         this.user = user;
         this.totalAmount = 0.0;
         items = new ArrayList<>();
@@ -390,11 +2485,11 @@ class Order {
     }
 
     public static int getNextId() {
-        return nextId;
+        return nextId.get();
     }
 
     public static void setNextId(int nextId) {
-        Order.nextId = nextId;
+        Order.nextId.set(nextId);
     }
 
     public int getOrderId() {
@@ -440,24 +2535,39 @@ class Order {
 
 
 class OrderManager {
+    private static final int MAX_RESERVE_ATTEMPTS = 3;
+    private static final long RESERVATION_TTL_MILLIS = 30_000;
+
     private static OrderManager instance;
-    private ArrayList<Order> orders;
+    private ConcurrentLinkedQueue<Order> orders;
+    private volatile FulfillmentPlanner defaultPlanner;
 
     private OrderManager(){
-        orders = new ArrayList<>();
+        orders = new ConcurrentLinkedQueue<>();
+        defaultPlanner = FulfillmentPlannerFactory.createPlanner(FulfillmentPlannerType.GREEDY);
     }
 
-    public static OrderManager getInstance(){
+    public static synchronized OrderManager getInstance(){
         if (instance == null) {
             instance = new OrderManager();
         }
         return instance;
     }
 
+    public void setDefaultPlanner(FulfillmentPlannerType type){
+        defaultPlanner = FulfillmentPlannerFactory.createPlanner(type);
+    }
+
     public void placeOrder(User user, Cart cart){
-        System.out.println("[Order Manager] Placing Order for: " + user.getName());
+        placeOrder(user, cart, defaultPlanner);
+    }
+
+    public void placeOrder(User user, Cart cart, FulfillmentPlannerType type){
+        placeOrder(user, cart, FulfillmentPlannerFactory.createPlanner(type));
+    }
 
-        ArrayList<Pair<Product, Integer>> requestedItems = cart.getItems();
+    public void placeOrder(User user, Cart cart, FulfillmentPlanner planner){
+        System.out.println("[Order Manager] Placing Order for: " + user.getName());
 
         double maxDistance = 5.0;
         ArrayList<DarkStore> nearbyDarkStores = DarkStoreManager.getInstance().getNearestDarkStore(user.getLocation()[0], user.getLocation()[1], maxDistance);
@@ -467,84 +2577,79 @@ class OrderManager {
             return;
         }
 
-        DarkStore firstStore = nearbyDarkStores.getFirst();
-        boolean allInFirst = true;
-        for (Pair<Product, Integer> item : requestedItems) {
-            int sku = item.first.getsku();
-            int qty = item.second;
-            if (firstStore.checkStock(sku) < qty) {
-                allInFirst = false;
+        LinkedHashMap<Integer, Integer> requestedItems = new LinkedHashMap<>(); // SKU -> qty
+        HashMap<Integer, Product> products = new HashMap<>();
+        for (Pair<Product, Integer> item : cart.getItems()) {
+            requestedItems.merge(item.first.getsku(), item.second, Integer::sum);
+            products.putIfAbsent(item.first.getsku(), item.first);
+        }
+
+        // Plan from a stock snapshot, then reserve the whole plan at once. If another order took
+        // the stock in between, the reservation fails cleanly and we plan again.
+        ReservationEngine engine = ReservationEngine.getInstance();
+        Reservation reservation = null;
+        HashMap<Integer, Integer> unfulfilled = new HashMap<>();
+        for (int attempt = 0; attempt < MAX_RESERVE_ATTEMPTS && reservation == null; attempt++) {
+            unfulfilled.clear();
+            ArrayList<DarkStore> candidates = SkuAvailabilityIndex.getInstance().storesCarryingAny(requestedItems.keySet(), nearbyDarkStores);
+            if (candidates.isEmpty()) {
+                break;
+            }
+            ArrayList<ReservationLine> plan = planner.plan(user.getLocation()[0], user.getLocation()[1], requestedItems, products, candidates, unfulfilled);
+            if (plan.isEmpty()) {
                 break;
             }
+            reservation = engine.reserve(plan, RESERVATION_TTL_MILLIS);
         }
 
-
-        Order order = new Order(user);
-
-        if (allInFirst) {
-            System.out.println("All items at: " + firstStore.getName());
-
-            for(Pair<Product, Integer> item : requestedItems){
-                int sku = item.first.getsku();
-                int qty = item.second;
-                firstStore.removeStock(sku, qty);
-                order.addToItems(new Pair<Product, Integer>(item.first, qty));
+        if (reservation == null) {
+            System.out.println("    Could not fulfill");
+            for (Integer sku : requestedItems.keySet()) {
+                System.out.println("    SKU" + sku + " x" + requestedItems.get(sku));
             }
-        }else{
-            System.out.println("Splitting Orders across stores...");
-            HashMap<Integer, Integer> allItems = new HashMap<>(); // SKU -> qty
+            return;
+        }
+        if (!engine.commit(reservation)) {
+            System.out.println("    Reservation expired before checkout completed");
+            return;
+        }
 
-            for(Pair<Product, Integer> item: requestedItems){
-                allItems.put(item.first.getsku(), item.second);
+        Order order = new Order(user);
+        ArrayList<DarkStore> usedStores = new ArrayList<>();
+        for (ReservationLine line : reservation.getLines()) {
+            if (!usedStores.contains(line.getStore())) {
+                usedStores.add(line.getStore());
             }
+        }
 
-            int partnerId = 1;
-            for(DarkStore store: nearbyDarkStores){
-                if (allItems.isEmpty()) break;
-
-                System.out.println("    Checking: " + store.getName());
-                boolean assigned = false;
-                ArrayList<Integer> toErase = new ArrayList<>();
-
-                for(Integer item: allItems.keySet()){
-                    int availaibleQty = store.checkStock(item);
-                    if (availaibleQty <= 0) continue;
-
-                    int takenQty = Math.min(availaibleQty, allItems.get(item));
-                    store.removeStock(item, takenQty);
-                    System.out.println("    " + store.getName() + " Supplies SKU " + item + " x" + takenQty);
-
-                    order.addToItems(new Pair<Product, Integer>(ProductFactory.createProduct(item), takenQty));
-
-                    if (allItems.get(item) >  takenQty) {
-                        allItems.put(item, allItems.get(item) - takenQty);
-                    }else{
-                        toErase.add(item);
-                    }
-                    assigned = true;
-                }
-
-                for(int sku: toErase) allItems.remove(sku);
-
-                if (assigned) {
-                    String pname = "Partner " + Integer.toString(partnerId++);
-                    order.addPartner(new DeliveryAgent(pname));
-                    System.out.println("    Assigned" + pname + " for " + store.getName());
-                }
-            }
+        if (usedStores.size() == 1 && unfulfilled.isEmpty()) {
+            System.out.println("All items at: " + usedStores.get(0).getName());
+        } else {
+            System.out.println("Splitting Orders across stores...");
+        }
 
-            if (!allItems.isEmpty()) {
-                System.out.println("    Could not fulfill");
-                for(Integer sku: allItems.keySet()){
-                    System.out.println("    SKU" + sku + " x" + allItems.get(sku));
+        int partnerId = 1;
+        double sum = 0;
+        for (DarkStore store : usedStores) {
+            for (ReservationLine line : reservation.getLines()) {
+                if (line.getStore() != store) continue;
+                if (usedStores.size() > 1 || !unfulfilled.isEmpty()) {
+                    System.out.println("    " + store.getName() + " Supplies SKU " + line.getProduct().getsku() + " x" + line.getQuantity());
                 }
+                order.addToItems(new Pair<Product, Integer>(line.getProduct(), line.getQuantity()));
+                sum += line.getProduct().getPrice() * line.getQuantity();
             }
+            String pname = "Partner " + Integer.toString(partnerId++);
+            order.addPartner(new DeliveryAgent(pname));
+            System.out.println("    Assigned" + pname + " for " + store.getName());
+        }
+        order.setTotalAmount(sum);
 
-            double sum = 0;
-            for(Pair<Product, Integer> item: order.getItems()){
-                sum += item.first.getPrice();
+        if (!unfulfilled.isEmpty()) {
+            System.out.println("    Could not fulfill");
+            for(Integer sku: unfulfilled.keySet()){
+                System.out.println("    SKU" + sku + " x" + unfulfilled.get(sku));
             }
-            order.setTotalAmount(sum);
         }
 
         // Printing Order summary
@@ -568,27 +2673,13 @@ class Zepto {
     public static void showAllItems(User user){
         System.out.println("[Zepto] All Availaible products withing 5KM for " + user.getName() + ":");
 
-        DarkStoreManager dsManager = DarkStoreManager.getInstance();
-        ArrayList<DarkStore> nearbyDarkStores = dsManager.getNearestDarkStore(user.getLocation()[0], user.getLocation()[1], 5.0);
-
-        HashMap<Integer, Double> skuToPrice = new HashMap<>();
-        HashMap<Integer, String> skuToName = new HashMap<>();
-
-        for(DarkStore store: nearbyDarkStores){
-            ArrayList<Product> products = store.getAllProducts();
-
-            for(Product product: products){
-                int sku = product.getsku();
-
-                if (!skuToPrice.containsKey(sku)) {
-                    skuToPrice.put(sku, product.getPrice());
-                    skuToName.put(sku, product.getName());
-                }
-            }
-        }
+        showItems(user, CatalogSort.SKU, 0, Integer.MAX_VALUE);
+    }
 
-        for(Integer entry: skuToPrice.keySet()){
-            System.out.println("    SKU" + entry + " (" + skuToName.get(entry) + ") @ Rs" + skuToPrice.get(entry));
+    public static void showItems(User user, CatalogSort sort, int page, int pageSize){
+        double[] location = user.getLocation();
+        for(Product product: CatalogCache.getInstance().getCatalog(location[0], location[1], sort, page, pageSize)){
+            System.out.println("    SKU" + product.getsku() + " (" + product.getName() + ") @ Rs" + product.getPrice());
         }
     }
 
@@ -638,3 +2729,99 @@ class Main {
         OrderManager.getInstance().placeOrder(user, user.getCart());
     }
 }
+
+
+// Planning latency and plan quality of each FulfillmentPlanner on random carts. Arguments are
+// key=value pairs: stores (nearby stores per order, 12), skus (catalog size, 300), cartSize
+// (distinct items per cart, 8), carts (5000), stocked (chance a store carries a SKU, 0.5)
+// Example: java FulfillmentPlannerBenchmark stores=25 cartSize=15
+class FulfillmentPlannerBenchmark {
+    public static void main(String[] args) {
+        HashMap<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length == 2) {
+                options.put(parts[0], parts[1]);
+            }
+        }
+        int storeCount = Integer.parseInt(options.getOrDefault("stores", "12"));
+        int skuCount = Integer.parseInt(options.getOrDefault("skus", "300"));
+        int cartSize = Integer.parseInt(options.getOrDefault("cartSize", "8"));
+        int carts = Integer.parseInt(options.getOrDefault("carts", "5000"));
+        double stocked = Double.parseDouble(options.getOrDefault("stocked", "0.5"));
+
+        Random random = new Random(42);
+        ArrayList<DarkStore> stores = new ArrayList<>();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // addStock logs every call
+        try {
+            for (int s = 0; s < storeCount; s++) {
+                DarkStore store = new DarkStore("Bench" + s, (random.nextDouble() - 0.5) * 7, (random.nextDouble() - 0.5) * 7);
+                for (int sku = 1; sku <= skuCount; sku++) {
+                    if (random.nextDouble() < stocked) {
+                        store.addStock(sku, 1 + random.nextInt(6));
+                    }
+                }
+                stores.add(store);
+            }
+        } finally {
+            System.setOut(console);
+        }
+        stores.sort((a, b) -> Double.compare(a.distanceTo(0, 0), b.distanceTo(0, 0)));
+
+        ArrayList<LinkedHashMap<Integer, Integer>> requests = new ArrayList<>();
+        for (int c = 0; c < carts; c++) {
+            LinkedHashMap<Integer, Integer> items = new LinkedHashMap<>();
+            while (items.size() < cartSize) {
+                items.put(1 + random.nextInt(skuCount), 1 + random.nextInt(3));
+            }
+            requests.add(items);
+        }
+        HashMap<Integer, Product> products = new HashMap<>();
+        for (int sku = 1; sku <= skuCount; sku++) {
+            products.put(sku, ProductFactory.createProduct(sku));
+        }
+
+        System.out.println("Stores=" + storeCount + " skus=" + skuCount + " cartSize=" + cartSize + " carts=" + carts + " stocked=" + stocked);
+        // Warm every planner and the measuring loop up before reporting any, so no timed plan
+        // shares the CPU with the JIT compiler
+        for (int round = 0; round < 3; round++) {
+            for (FulfillmentPlannerType type : FulfillmentPlannerType.values()) {
+                measure(FulfillmentPlannerFactory.createPlanner(type), requests, products, stores);
+            }
+        }
+        for (FulfillmentPlannerType type : FulfillmentPlannerType.values()) {
+            System.out.printf("  %-13s %s%n", type, measure(FulfillmentPlannerFactory.createPlanner(type), requests, products, stores));
+        }
+    }
+
+    private static String measure(FulfillmentPlanner planner, ArrayList<LinkedHashMap<Integer, Integer>> requests,
+            HashMap<Integer, Product> products, ArrayList<DarkStore> stores) {
+        int carts = requests.size();
+        long[] latencies = new long[carts];
+        long storesUsed = 0;
+        double distance = 0;
+        long unfulfilledUnits = 0;
+        for (int c = 0; c < carts; c++) {
+            HashMap<Integer, Integer> unfulfilled = new HashMap<>();
+            long start = System.nanoTime();
+            ArrayList<ReservationLine> plan = planner.plan(0, 0, requests.get(c), products, stores, unfulfilled);
+            latencies[c] = System.nanoTime() - start;
+            ArrayList<DarkStore> used = new ArrayList<>();
+            for (ReservationLine line : plan) {
+                if (!used.contains(line.getStore())) {
+                    used.add(line.getStore());
+                    distance += line.getStore().distanceTo(0, 0);
+                }
+            }
+            storesUsed += used.size();
+            for (int qty : unfulfilled.values()) {
+                unfulfilledUnits += qty;
+            }
+        }
+        Arrays.sort(latencies);
+        return String.format("p50=%7.1fus p99=%7.1fus max=%8.1fus stores/order=%.2f km/order=%.2f unfulfilled=%d",
+            latencies[carts / 2] / 1e3, latencies[(int) (carts * 0.99)] / 1e3, latencies[carts - 1] / 1e3,
+            (double) storesUsed / carts, distance / carts, unfulfilledUnits);
+    }
+}